@@ -0,0 +1,107 @@
+package filesystem;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compares choosing reclaim victims from ChunkIndex's heap against how Database chose them before the index:
+ * the chunks kept in nested maps of ChunkInfo by fileID and chunkNo, all scanned by getMostBackedUpChunk()
+ * for each victim.
+ * <p>
+ * Both start from the same chunks, with 0 to 5 mirrors each, and remove victims one at a time, as RECLAIM does.
+ * As each scan goes over every chunk, fewer victims are taken by scanning.
+ * <p>
+ * Usage: java -classpath bin filesystem.ReclaimBenchmark [chunks] [scanned victims] [heap victims]
+ */
+public class ReclaimBenchmark {
+    private static final int CHUNKS_PER_FILE = 1000;
+    private static final int MAX_MIRRORS = 5;
+
+    public static void main(String[] args) {
+        int numChunks = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int scanVictims = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int heapVictims = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        int[] numMirrors = new int[numChunks];
+        Random random = new Random(1);
+        for (int i = 0; i < numChunks; i++)
+            numMirrors[i] = random.nextInt(MAX_MIRRORS + 1);
+
+        ChunkIndex index = new ChunkIndex();
+        LegacyDatabase legacy = new LegacyDatabase();
+        for (int i = 0; i < numChunks; i++) {
+            String fileID = fileID(i / CHUNKS_PER_FILE);
+            int chunkNo = i % CHUNKS_PER_FILE;
+
+            ChunkInfo chunkInfo = new ChunkInfo(fileID, chunkNo, 1, 64000);
+            for (int peerID = 0; peerID < numMirrors[i]; peerID++)
+                chunkInfo.addMirror(peerID);
+
+            index.add(chunkInfo);
+            legacy.addChunk(chunkInfo);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < scanVictims; i++) {
+            ChunkInfo victim = legacy.getMostBackedUpChunk();
+            legacy.removeChunk(victim.getFileID(), victim.getChunkNo());
+        }
+        long legacyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < heapVictims; i++) {
+            ChunkInfo victim = index.peekReclaimVictim();
+            index.remove(victim.getFileID(), victim.getChunkNo());
+        }
+        long heapTime = System.nanoTime() - start;
+
+        double scanPerVictim = legacyTime / (double) scanVictims;
+        double heapPerVictim = heapTime / (double) heapVictims;
+        System.out.printf("%d chunks%n", numChunks);
+        System.out.printf("scan: %10.0f ns/victim (%d victims)%n", scanPerVictim, scanVictims);
+        System.out.printf("heap: %10.0f ns/victim (%d victims)%n", heapPerVictim, heapVictims);
+        System.out.printf("speedup: %.0fx%n", scanPerVictim / heapPerVictim);
+    }
+
+    private static String fileID(int file) {
+        return String.format("%064X", file);
+    }
+
+    /**
+     * Database's chunks before ChunkIndex, with getMostBackedUpChunk() and removeChunk() as they were.
+     * It can share the ChunkInfos given to the index, which copies them.
+     */
+    private static class LegacyDatabase {
+        private final ConcurrentMap<String, ConcurrentMap<Integer, ChunkInfo>> chunksBackedUp = new ConcurrentHashMap<>();
+
+        void addChunk(ChunkInfo chunkInfo) {
+            chunksBackedUp.computeIfAbsent(chunkInfo.getFileID(), k -> new ConcurrentHashMap<>())
+                    .put(chunkInfo.getChunkNo(), chunkInfo);
+        }
+
+        public void removeChunk(String fileID, int chunkNo) {
+            if (!chunksBackedUp.containsKey(fileID))
+                return;
+
+            chunksBackedUp.get(fileID).remove(chunkNo);
+        }
+
+        private ChunkInfo getMostBackedUpChunk() {
+            ChunkInfo mostBackedUpChunk = null;
+            int maxMirroring = -1;
+
+            for (ConcurrentMap.Entry<String, ConcurrentMap<Integer, ChunkInfo>> fileEntry : chunksBackedUp.entrySet()) {
+                for (ConcurrentMap.Entry<Integer, ChunkInfo> chunkEntry : fileEntry.getValue().entrySet()) {
+                    int numMirrors = chunkEntry.getValue().getNumMirrors();
+                    if (numMirrors > maxMirroring) {
+                        maxMirroring = numMirrors;
+                        mostBackedUpChunk = chunkEntry.getValue();
+                    }
+                }
+            }
+
+            return mostBackedUpChunk;
+        }
+    }
+}
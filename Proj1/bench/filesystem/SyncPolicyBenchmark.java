@@ -0,0 +1,118 @@
+package filesystem;
+
+import filesystem.SystemManager.SAVE_STATE;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Measures the time from a chunk being saved to it being acknowledged, when its STORED would be sent,
+ * under each ChunkWriter.SyncPolicy, for each ChunkStore.
+ * <p>
+ * Several senders save 64000 byte chunks at once, each waiting for its last chunk to be acknowledged
+ * before saving the next, as concurrent PUTCHUNKs do. Chunks are kept in a temporary folder
+ * under the given directory, so the numbers are those of the disk it's on.
+ * <p>
+ * Usage: java -classpath bin filesystem.SyncPolicyBenchmark [chunks per sender] [senders] [directory] 2>/dev/null
+ */
+public class SyncPolicyBenchmark {
+    private static final int CHUNK_SIZE = 64000;
+    private static final long MAX_MEMORY = 1L << 40;
+
+    public static void main(String[] args) throws Exception {
+        int chunksPerSender = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int numSenders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        Path directory = Paths.get(args.length > 2 ? args[2] : ".");
+
+        byte[] data = new byte[CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+
+        System.out.printf("%d senders, %d chunks each, in %s%n", numSenders, chunksPerSender, directory.toAbsolutePath());
+
+        run(ChunkStore.StoreType.FILES, ChunkWriter.SyncPolicy.NONE, chunksPerSender / 4 + 1, numSenders,
+                directory, data, false); // Warm-up
+        for (ChunkStore.StoreType storeType : ChunkStore.StoreType.values()) {
+            for (ChunkWriter.SyncPolicy policy : ChunkWriter.SyncPolicy.values())
+                run(storeType, policy, chunksPerSender, numSenders, directory, data, true);
+        }
+
+        System.exit(0); // Stops the ChunkWriters and segment compactors
+    }
+
+    private static void run(ChunkStore.StoreType storeType, ChunkWriter.SyncPolicy policy, int chunksPerSender,
+                            int numSenders, Path directory, byte[] data, boolean print) throws Exception {
+        Path root = Files.createTempDirectory(directory, "sync-bench");
+        SystemManager systemManager = new SystemManager(root + "/", MAX_MEMORY, storeType, false, 0, policy);
+
+        ExecutorService senders = Executors.newFixedThreadPool(numSenders);
+        List<Future<long[]>> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int sender = 0; sender < numSenders; sender++) {
+            String fileID = String.format("%064X", sender);
+            results.add(senders.submit(() -> {
+                long[] latencies = new long[chunksPerSender];
+                for (int chunkNo = 0; chunkNo < chunksPerSender; chunkNo++) {
+                    long saved = System.nanoTime();
+                    if (systemManager.saveChunk(fileID, chunkNo, data).join() != SAVE_STATE.SUCCESS)
+                        throw new IOException("Couldn't save chunk " + fileID + "/" + chunkNo);
+                    latencies[chunkNo] = System.nanoTime() - saved;
+                }
+                return latencies;
+            }));
+        }
+
+        long[] latencies = new long[0];
+        for (Future<long[]> result : results) {
+            long[] senderLatencies = result.get();
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + senderLatencies.length);
+            System.arraycopy(senderLatencies, 0, latencies, offset, senderLatencies.length);
+        }
+        long elapsed = System.nanoTime() - start;
+        senders.shutdown();
+
+        ChunkWriter writer = systemManager.getChunkWriter();
+        if (print) {
+            Arrays.sort(latencies);
+            System.out.printf("%-8s %-5s avg: %6.2f ms  p50: %6.2f ms  p99: %6.2f ms  max: %6.2f ms  %5.0f chunks/s  %4.1f chunks/sync%n",
+                    storeType, policy, average(latencies) / 1e6, percentile(latencies, 0.50) / 1e6,
+                    percentile(latencies, 0.99) / 1e6, latencies[latencies.length - 1] / 1e6,
+                    latencies.length / (elapsed / 1e9),
+                    writer.getSyncCount() > 0 ? latencies.length / (double) writer.getSyncCount() : 0);
+        }
+
+        // Saved now, so the periodic save has nothing left to write once the folder is deleted
+        systemManager.getDatabase().savePermanentState();
+        systemManager.getMemoryManager().savePermanentState();
+        delete(root);
+    }
+
+    private static double average(long[] values) {
+        double sum = 0;
+        for (long value : values)
+            sum += value;
+        return sum / values.length;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package network;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares parsing received datagrams with Message(byte[], int) against the previous parser,
+ * which read the header line through a BufferedReader, split it with a regex and copied the body.
+ * <p>
+ * Usage: java -classpath bin network.MessageParseBenchmark [iterations]
+ */
+public class MessageParseBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        String fileID = "6E66506F1DEC82C0327CA4DF8B26D10ADBC4B4172E7EDD51B651E9E5EE5B4C36";
+        byte[] body = new byte[64000];
+        new Random(1).nextBytes(body);
+
+        byte[] putchunk = datagram("PUTCHUNK 1.0 1 " + fileID + " 17 2 \r\n\r\n", body);
+        byte[] stored = datagram("STORED 1.0 2 " + fileID + " 17 \r\n\r\n", new byte[0]);
+
+        run("PUTCHUNK", putchunk, iterations);
+        run("STORED", stored, iterations);
+    }
+
+    private static byte[] datagram(String header, byte[] body) {
+        byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[headerBytes.length + body.length];
+        System.arraycopy(headerBytes, 0, data, 0, headerBytes.length);
+        System.arraycopy(body, 0, data, headerBytes.length, body.length);
+        return data;
+    }
+
+    private static void run(String name, byte[] data, int iterations) throws Exception {
+        long legacy = 0;
+        long current = 0;
+
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            legacy = time(() -> LegacyParser.parse(data, data.length), iterations);
+            current = time(() -> new Message(data, data.length), iterations);
+        }
+
+        System.out.printf("%-8s legacy: %8.0f ns/msg  current: %8.0f ns/msg  speedup: %.1fx%n",
+                name, legacy / (double) iterations, current / (double) iterations, legacy / (double) current);
+    }
+
+    private interface Parse {
+        Object parse() throws Exception;
+    }
+
+    private static long sink;
+
+    private static long time(Parse parse, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink += parse.parse().hashCode();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The header parsing Message did before reading fields directly from the datagram.
+     */
+    private static class LegacyParser {
+        String[] fields;
+        byte[] body;
+
+        static LegacyParser parse(byte[] data, int length) throws IOException {
+            LegacyParser parsed = new LegacyParser();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+            String header = reader.readLine();
+
+            String headerCleaned = header.trim().replaceAll("\\s+", " ");
+            parsed.fields = headerCleaned.split("\\s+");
+            Integer.parseInt(parsed.fields[2]);
+            if (parsed.fields.length > 4)
+                Integer.parseInt(parsed.fields[4]);
+
+            if (parsed.fields[0].equals("PUTCHUNK") || parsed.fields[0].equals("CHUNK")) {
+                int readBytes = length - header.length() - 4;
+                ByteArrayInputStream message = new ByteArrayInputStream(data, header.length() + 4, readBytes);
+                parsed.body = new byte[readBytes];
+                message.read(parsed.body, 0, readBytes);
+            }
+
+            return parsed;
+        }
+    }
+}
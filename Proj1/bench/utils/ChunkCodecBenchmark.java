@@ -0,0 +1,88 @@
+package utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static protocols.ProtocolSettings.MAX_CHUNK_SIZE;
+
+/**
+ * Measures what each ChunkCodec saves and costs, on the chunks of the given files.
+ * <p>
+ * For each file, prints how much smaller its chunks get, counting those that don't shrink as sent unencoded,
+ * then the encoding throughput and CPU time per MB of chunks, and the decoding throughput of the encoded ones,
+ * as done by the peers backing up and restoring the file.
+ * <p>
+ * Usage: java -classpath bin utils.ChunkCodecBenchmark [rounds] [file]...
+ */
+public class ChunkCodecBenchmark {
+    private static final int WARMUP_ROUNDS = 1;
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String[] files = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length)
+                : new String[]{"files/image1.png", "files/lol.pdf"};
+
+        for (ChunkCodec codec : ChunkCodec.values()) {
+            if (codec == ChunkCodec.NONE)
+                continue;
+
+            for (String file : files)
+                run(codec, file, rounds);
+        }
+    }
+
+    private static void run(ChunkCodec codec, String file, int rounds) throws IOException {
+        byte[][] chunks = split(Files.readAllBytes(Paths.get(file)));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            long raw = 0;
+            long sent = 0;
+            byte[][] encoded = new byte[chunks.length][];
+
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                for (int chunkNo = 0; chunkNo < chunks.length; chunkNo++) {
+                    encoded[chunkNo] = codec.encode(chunks[chunkNo]);
+                    raw += chunks[chunkNo].length;
+                    sent += encoded[chunkNo] != null ? encoded[chunkNo].length : chunks[chunkNo].length;
+                }
+            }
+            long encodeCpu = threads.getCurrentThreadCpuTime() - cpuStart;
+            long encodeTime = System.nanoTime() - start;
+
+            long decoded = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                for (byte[] chunk : encoded) {
+                    if (chunk != null)
+                        decoded += codec.decode(ByteBuffer.wrap(chunk), MAX_CHUNK_SIZE).remaining();
+                }
+            }
+            long decodeTime = System.nanoTime() - start;
+
+            if (round < WARMUP_ROUNDS)
+                continue;
+
+            System.out.printf("%-7s %-16s %6.2fx smaller  encode: %5.0f MB/s, %5.1f ms CPU/MB  decode: %s%n",
+                    codec, Paths.get(file).getFileName(), raw / (double) sent,
+                    raw / 1e6 / (encodeTime / 1e9), encodeCpu / 1e6 / (raw / 1e6),
+                    decoded > 0 ? String.format("%5.0f MB/s", decoded / 1e6 / (decodeTime / 1e9)) : "nothing encoded");
+        }
+    }
+
+    private static byte[][] split(byte[] data) {
+        byte[][] chunks = new byte[data.length / MAX_CHUNK_SIZE + 1][];
+        for (int chunkNo = 0; chunkNo < chunks.length; chunkNo++) {
+            int offset = chunkNo * MAX_CHUNK_SIZE;
+            chunks[chunkNo] = Arrays.copyOfRange(data, offset, Math.min(offset + MAX_CHUNK_SIZE, data.length));
+        }
+        return chunks;
+    }
+}
@@ -2,4 +2,6 @@
 rm -rf bin
 rm -f *.jar
 mkdir -p bin
-javac -Xlint:unchecked -d bin -sourcepath src src/service/TestApp.java src/service/Peer.java
\ No newline at end of file
+javac -Xlint:unchecked -d bin -sourcepath src src/service/TestApp.java src/service/Peer.java
+javac -Xlint:unchecked -d bin -sourcepath src:bench $(find bench -name "*.java")
+javac -Xlint:unchecked -d bin -sourcepath src:test $(find test -name "*.java")
@@ -0,0 +1,54 @@
+package channels;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of receive buffers shared by a Channel's socket thread and its parser workers.
+ */
+class BufferPool {
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final int bufferSize;
+
+    /**
+     * Number of times a buffer was requested while the pool was empty
+     */
+    private final AtomicLong exhaustedCount;
+
+    BufferPool(int numBuffers, int bufferSize) {
+        this.freeBuffers = new ArrayBlockingQueue<>(numBuffers);
+        this.bufferSize = bufferSize;
+        this.exhaustedCount = new AtomicLong();
+
+        for (int i = 0; i < numBuffers; i++)
+            freeBuffers.add(new byte[bufferSize]);
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating a new one if the pool is empty.
+     */
+    byte[] acquire() {
+        byte[] buffer = freeBuffers.poll();
+        if (buffer == null) {
+            exhaustedCount.incrementAndGet();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers over the pool's capacity are discarded.
+     */
+    void release(byte[] buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    int getAvailable() {
+        return freeBuffers.size();
+    }
+}
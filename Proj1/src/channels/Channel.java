@@ -1,26 +1,60 @@
 package channels;
 
+import network.Message;
 import service.Peer;
+import utils.Log;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
 
-public abstract class Channel implements Runnable {
+public abstract class Channel {
 
     public enum ChannelType {
         MC, MDB, MDR
     }
 
-    private static final int MAX_MESSAGE_SIZE = 65000;
-    private MulticastSocket socket;
+    public enum TransportType {
+        /**
+         * One blocking MulticastSocket and receive thread per channel
+         */
+        SOCKET,
+        /**
+         * Non-blocking DatagramChannels served by a single selector shared by all channels
+         */
+        NIO
+    }
+
+    /**
+     * System properties overriding a channel's number of parser workers, parse queue capacity
+     * and number of receive buffers, named after its type, e.g. channel.mdb.queue
+     */
+    private static final String NUM_PARSERS_PROPERTY = "channel.%s.parsers";
+    private static final String QUEUE_CAPACITY_PROPERTY = "channel.%s.queue";
+    private static final String POOL_SIZE_PROPERTY = "channel.%s.buffers";
+
+    static final int MAX_MESSAGE_SIZE = 65000;
     private InetAddress mcastAddr;
     private int mcastPort;
-    private Peer parentPeer;
 
-    public Channel(Peer parentPeer, String mcastAddr, String mcastPort) {
-        this.parentPeer = parentPeer;
+    private BufferPool bufferPool;
+    private ReceivePipeline receivePipeline;
+    private ChannelTransport transport;
+
+    /**
+     * @param selector      Selector shared by the peer's channels when using the NIO transport,
+     *                      or null to use a blocking MulticastSocket
+     * @param numParsers    Default number of threads parsing received datagrams
+     * @param queueCapacity Default maximum number of received datagrams waiting to be parsed
+     * @param poolSize      Default number of receive buffers kept for reuse
+     */
+    public Channel(Peer parentPeer, String mcastAddr, String mcastPort, MulticastSelector selector,
+                   ChannelType type, int numParsers, int queueCapacity, int poolSize) {
+        numParsers = getSizeProperty(NUM_PARSERS_PROPERTY, type, numParsers);
+        queueCapacity = getSizeProperty(QUEUE_CAPACITY_PROPERTY, type, queueCapacity);
+        poolSize = getSizeProperty(POOL_SIZE_PROPERTY, type, poolSize);
+
+        this.bufferPool = new BufferPool(poolSize, MAX_MESSAGE_SIZE);
+        this.receivePipeline = new ReceivePipeline(parentPeer, bufferPool, numParsers, queueCapacity);
 
         try {
             this.mcastAddr = InetAddress.getByName(mcastAddr);
@@ -29,46 +63,93 @@ public abstract class Channel implements Runnable {
             e.printStackTrace();
         }
 
+        if (selector == null)
+            transport = new SocketTransport(this);
+        else
+            transport = new NioTransport(this, selector);
+
         initialize();
     }
 
+    /**
+     * @return The value of the channel's property, or defaultSize if it isn't set to a positive number
+     */
+    private static int getSizeProperty(String property, ChannelType type, int defaultSize) {
+        String name = String.format(property, type.name().toLowerCase());
+        Integer size = Integer.getInteger(name);
+        if (size == null)
+            return defaultSize;
+
+        if (size < 1) {
+            Log.logWarning("Ignoring " + name + "=" + size + ", using " + defaultSize);
+            return defaultSize;
+        }
+        return size;
+    }
+
     private void initialize() {
         try {
-            socket = new MulticastSocket(mcastPort);
-            socket.setTimeToLive(1);
-            socket.joinGroup(mcastAddr);
+            transport.open(mcastAddr, mcastPort);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    @Override
-    public void run() {
+    /**
+     * Starts the parser workers and begins receiving messages.
+     */
+    public void start() {
+        receivePipeline.start();
+        transport.start();
+    }
 
-        byte[] rbuf = new byte[MAX_MESSAGE_SIZE];
-        DatagramPacket packet = new DatagramPacket(rbuf, rbuf.length);
+    public void sendMessage(Message message) throws IOException {
+        transport.send(message);
+    }
 
-        // Loop waiting for messages
-        while (true) {
+    public void close() {
+        receivePipeline.stop();
+        transport.close();
+    }
 
-            try { // blocking method
-                this.socket.receive(packet);
-                this.parentPeer.addMsgToHandler(packet.getData(), packet.getLength());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    byte[] acquireBuffer() {
+        return bufferPool.acquire();
+    }
 
-        }
+    void releaseBuffer(byte[] buffer) {
+        bufferPool.release(buffer);
     }
 
-    synchronized public void sendMessage(byte[] message) throws IOException {
+    /**
+     * Hands a received datagram to the parser workers.
+     *
+     * @return True if the buffer was handed off, False if the datagram was dropped
+     * and the buffer may be reused
+     */
+    boolean deliver(byte[] data, int length) {
+        return receivePipeline.submit(data, length);
+    }
 
-        DatagramPacket packet = new DatagramPacket(message, message.length, mcastAddr, mcastPort);
-        socket.send(packet);
+    public long getReceivedCount() {
+        return receivePipeline.getReceivedCount();
     }
 
-    public void close() {
-        socket.close();
+    /**
+     * @return Number of datagrams discarded because the parse queue was full
+     */
+    public long getDroppedCount() {
+        return receivePipeline.getDroppedCount();
+    }
+
+    /**
+     * @return Number of times a new receive buffer had to be allocated because the pool was empty
+     */
+    public long getPoolExhaustedCount() {
+        return bufferPool.getExhaustedCount();
+    }
+
+    public int getQueueDepth() {
+        return receivePipeline.getQueueDepth();
     }
 
 }
@@ -0,0 +1,25 @@
+package channels;
+
+import network.Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Moves a Channel's datagrams between the multicast group and the Channel's receive pipeline.
+ */
+abstract class ChannelTransport {
+    protected final Channel channel;
+
+    ChannelTransport(Channel channel) {
+        this.channel = channel;
+    }
+
+    abstract void open(InetAddress mcastAddr, int mcastPort) throws IOException;
+
+    abstract void start();
+
+    abstract void send(Message message) throws IOException;
+
+    abstract void close();
+}
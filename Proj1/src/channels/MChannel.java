@@ -4,8 +4,12 @@ import service.Peer;
 import utils.Log;
 
 public class MChannel extends Channel {
-    public MChannel(Peer parentPeer, String mcastAddr, String mcastPort) {
-        super(parentPeer, mcastAddr, mcastPort);
+    private static final int NUM_PARSERS = 2;
+    private static final int QUEUE_CAPACITY = 512;
+    private static final int POOL_SIZE = 16;
+
+    public MChannel(Peer parentPeer, String mcastAddr, String mcastPort, MulticastSelector selector) {
+        super(parentPeer, mcastAddr, mcastPort, selector, ChannelType.MC, NUM_PARSERS, QUEUE_CAPACITY, POOL_SIZE);
         Log.log("Control channel initialized!");
     }
 }
@@ -4,8 +4,12 @@ import service.Peer;
 import utils.Log;
 
 public class MDBChannel extends Channel {
-    public MDBChannel(Peer parentPeer, String mcastAddr, String mcastPort) {
-        super(parentPeer, mcastAddr, mcastPort);
+    private static final int NUM_PARSERS = 4;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int POOL_SIZE = 32;
+
+    public MDBChannel(Peer parentPeer, String mcastAddr, String mcastPort, MulticastSelector selector) {
+        super(parentPeer, mcastAddr, mcastPort, selector, ChannelType.MDB, NUM_PARSERS, QUEUE_CAPACITY, POOL_SIZE);
         Log.log("Backup channel initialized!");
     }
 }
@@ -4,8 +4,12 @@ import service.Peer;
 import utils.Log;
 
 public class MDRChannel extends Channel {
-    public MDRChannel(Peer parentPeer, String mcastAddr, String mcastPort) {
-        super(parentPeer, mcastAddr, mcastPort);
+    private static final int NUM_PARSERS = 2;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int POOL_SIZE = 32;
+
+    public MDRChannel(Peer parentPeer, String mcastAddr, String mcastPort, MulticastSelector selector) {
+        super(parentPeer, mcastAddr, mcastPort, selector, ChannelType.MDR, NUM_PARSERS, QUEUE_CAPACITY, POOL_SIZE);
         Log.log("Restore channel initialized!");
     }
 }
@@ -0,0 +1,94 @@
+package channels;
+
+import utils.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single selector loop serving the NIO transports of all of a peer's channels.
+ */
+public class MulticastSelector implements Runnable {
+    private final Selector selector;
+
+    /**
+     * Changes to registrations and interest sets, applied by the selector thread
+     */
+    private final Queue<Runnable> pendingChanges;
+
+    public MulticastSelector() throws IOException {
+        this.selector = Selector.open();
+        this.pendingChanges = new ConcurrentLinkedQueue<>();
+    }
+
+    void register(NioTransport transport) {
+        pendingChanges.add(() -> {
+            try {
+                transport.getReceiveChannel().register(selector, SelectionKey.OP_READ, transport);
+                transport.setSendKey(transport.getSendChannel().register(selector, 0, transport));
+            } catch (IOException e) {
+                Log.logError("Couldn't register multicast channel: " + e.getMessage());
+            }
+        });
+        selector.wakeup();
+    }
+
+    void requestWrite(NioTransport transport) {
+        pendingChanges.add(() -> {
+            SelectionKey sendKey = transport.getSendKey();
+            if (sendKey != null && sendKey.isValid())
+                sendKey.interestOps(SelectionKey.OP_WRITE);
+        });
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.logError("Multicast selector failed: " + e.getMessage());
+                return;
+            }
+
+            Runnable change;
+            while ((change = pendingChanges.poll()) != null)
+                change.run();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                handleKey(key);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        NioTransport transport = (NioTransport) key.attachment();
+
+        try {
+            if (key.isValid() && key.isReadable())
+                transport.read();
+
+            if (key.isValid() && key.isWritable() && transport.flush())
+                key.interestOps(0);
+        } catch (IOException e) {
+            Log.logError("Multicast channel I/O error: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.logError("Couldn't close multicast selector: " + e.getMessage());
+        }
+    }
+}
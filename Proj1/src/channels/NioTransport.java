@@ -0,0 +1,179 @@
+package channels;
+
+import network.Message;
+import utils.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Non-blocking transport, served by a MulticastSelector shared by all of the peer's channels.
+ * <p>
+ * Sends are queued and written by the selector thread once the socket is writable.
+ * Header and body are written with a single gathering write, without being concatenated.
+ */
+class NioTransport extends ChannelTransport {
+    private final MulticastSelector selector;
+
+    private DatagramChannel receiveChannel;
+    private MembershipKey membership;
+    /**
+     * Connected to the multicast group, since gathering writes require a connected DatagramChannel
+     */
+    private DatagramChannel sendChannel;
+    private SelectionKey sendKey;
+
+    /**
+     * Most datagrams waiting to be written, after which send() blocks
+     */
+    private static final int OUTBOUND_CAPACITY = 256;
+
+    private final BlockingQueue<ByteBuffer[]> outbound;
+
+    NioTransport(Channel channel, MulticastSelector selector) {
+        super(channel);
+        this.selector = selector;
+        this.outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+    }
+
+    @Override
+    void open(InetAddress mcastAddr, int mcastPort) throws IOException {
+        NetworkInterface networkInterface = getMulticastInterface();
+
+        receiveChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        receiveChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        receiveChannel.bind(new InetSocketAddress(mcastPort));
+        receiveChannel.configureBlocking(false);
+        membership = receiveChannel.join(mcastAddr, networkInterface);
+
+        sendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        sendChannel.connect(new InetSocketAddress(mcastAddr, mcastPort));
+        sendChannel.configureBlocking(false);
+    }
+
+    @Override
+    void start() {
+        selector.register(this);
+    }
+
+    void setSendKey(SelectionKey sendKey) {
+        this.sendKey = sendKey;
+    }
+
+    @Override
+    void send(Message message) throws IOException {
+        ByteBuffer header = message.getHeaderBuffer();
+        ByteBuffer body = message.getBodyBuffer();
+
+        try { // Waits for the selector thread to write earlier datagrams if the queue is full
+            outbound.put(body != null ? new ByteBuffer[]{header, body} : new ByteBuffer[]{header});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing " + message);
+        }
+        selector.requestWrite(this);
+    }
+
+    /**
+     * Reads every datagram available on the socket. Called by the selector thread.
+     */
+    void read() throws IOException {
+        byte[] rbuf = channel.acquireBuffer();
+
+        try {
+            while (true) {
+                ByteBuffer buffer = ByteBuffer.wrap(rbuf);
+                if (receiveChannel.receive(buffer) == null)
+                    return;
+
+                // Hand the buffer off to the parser, or reuse it if the datagram was dropped
+                if (channel.deliver(rbuf, buffer.position()))
+                    rbuf = channel.acquireBuffer();
+            }
+        } finally { // The last buffer acquired was never handed off
+            channel.releaseBuffer(rbuf);
+        }
+    }
+
+    /**
+     * Writes queued datagrams until the queue is empty or the socket's send buffer is full.
+     * Called by the selector thread.
+     *
+     * @return True if the outbound queue was emptied
+     */
+    boolean flush() throws IOException {
+        ByteBuffer[] datagram;
+
+        while ((datagram = outbound.peek()) != null) {
+            if (sendChannel.write(datagram) == 0 && hasRemaining(datagram))
+                return false;
+            outbound.poll();
+        }
+
+        return true;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining())
+                return true;
+        }
+        return false;
+    }
+
+    DatagramChannel getReceiveChannel() {
+        return receiveChannel;
+    }
+
+    DatagramChannel getSendChannel() {
+        return sendChannel;
+    }
+
+    SelectionKey getSendKey() {
+        return sendKey;
+    }
+
+    @Override
+    void close() {
+        try {
+            membership.drop();
+            receiveChannel.close();
+            sendChannel.close();
+        } catch (IOException e) {
+            Log.logError("Couldn't close multicast channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the first network interface that is up and supports multicast,
+     * preferring non-loopback interfaces.
+     */
+    private static NetworkInterface getMulticastInterface() throws SocketException {
+        NetworkInterface loopback = null;
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast())
+                continue;
+
+            if (!networkInterface.isLoopback())
+                return networkInterface;
+            loopback = networkInterface;
+        }
+
+        if (loopback == null)
+            throw new SocketException("No multicast capable network interface");
+        return loopback;
+    }
+}
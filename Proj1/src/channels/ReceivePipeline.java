@@ -0,0 +1,138 @@
+package channels;
+
+import service.Peer;
+import utils.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands received datagrams from a Channel's socket thread to a set of parser workers,
+ * so the socket thread never waits for a message to be parsed before the next receive().
+ * <p>
+ * Each worker has its own queue, and datagrams are queued by a hash of their fileID header field,
+ * so the messages of a file reach the dispatcher in the order they were received,
+ * while those of different files are parsed in parallel.
+ */
+class ReceivePipeline {
+
+    private static class Datagram {
+        private final byte[] data;
+        private final int length;
+
+        Datagram(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final Peer parentPeer;
+    private final BufferPool bufferPool;
+    private final BlockingQueue<Datagram>[] queues;
+
+    private ExecutorService parsers;
+
+    private final AtomicLong receivedCount;
+    private final AtomicLong droppedCount;
+
+    /**
+     * @param queueCapacity Most datagrams waiting to be parsed, split evenly between the workers
+     */
+    @SuppressWarnings("unchecked")
+    ReceivePipeline(Peer parentPeer, BufferPool bufferPool, int numParsers, int queueCapacity) {
+        this.parentPeer = parentPeer;
+        this.bufferPool = bufferPool;
+        this.queues = new BlockingQueue[numParsers];
+        for (int i = 0; i < numParsers; i++)
+            queues[i] = new ArrayBlockingQueue<>(Math.max(1, queueCapacity / numParsers));
+
+        this.receivedCount = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+    }
+
+    void start() {
+        parsers = Executors.newFixedThreadPool(queues.length);
+        for (BlockingQueue<Datagram> queue : queues)
+            parsers.execute(() -> parse(queue));
+    }
+
+    void stop() {
+        if (parsers != null)
+            parsers.shutdownNow();
+    }
+
+    /**
+     * Queues a received datagram for parsing.
+     *
+     * @return True if the datagram was queued, False if it was dropped because the queue is full,
+     * in which case the buffer still belongs to the caller
+     */
+    boolean submit(byte[] data, int length) {
+        receivedCount.incrementAndGet();
+
+        BlockingQueue<Datagram> queue = queues[Math.floorMod(hashFileID(data, length), queues.length)];
+        if (!queue.offer(new Datagram(data, length))) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Hash of the datagram's fourth header field, the fileID, or 0 if its header has none
+     */
+    private static int hashFileID(byte[] data, int length) {
+        int i = 0;
+        for (int field = 0; field < 3; field++) {
+            while (i < length && data[i] == ' ')
+                i++;
+            while (i < length && data[i] != ' ' && data[i] != '\r')
+                i++;
+        }
+        while (i < length && data[i] == ' ')
+            i++;
+
+        int hash = 0;
+        for (; i < length && data[i] != ' ' && data[i] != '\r'; i++)
+            hash = 31 * hash + data[i];
+        return hash;
+    }
+
+    private void parse(BlockingQueue<Datagram> queue) {
+        while (!Thread.currentThread().isInterrupted()) {
+            Datagram datagram;
+            try {
+                datagram = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            byte[] data = datagram.data;
+            try {
+                // Messages with a body keep a view over the buffer, which goes back to the pool once they're handled
+                if (!parentPeer.addMsgToHandler(data, datagram.length, () -> bufferPool.release(data)))
+                    bufferPool.release(data);
+            } catch (RuntimeException e) {
+                Log.logError("Couldn't parse received datagram: " + e.getMessage());
+            }
+        }
+    }
+
+    long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Datagram> queue : queues)
+            depth += queue.size();
+        return depth;
+    }
+}
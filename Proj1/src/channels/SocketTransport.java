@@ -0,0 +1,73 @@
+package channels;
+
+import network.Message;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+/**
+ * Blocking transport, with a MulticastSocket and a receive thread per channel.
+ */
+class SocketTransport extends ChannelTransport implements Runnable {
+    private MulticastSocket socket;
+    private InetAddress mcastAddr;
+    private int mcastPort;
+
+    SocketTransport(Channel channel) {
+        super(channel);
+    }
+
+    @Override
+    void open(InetAddress mcastAddr, int mcastPort) throws IOException {
+        this.mcastAddr = mcastAddr;
+        this.mcastPort = mcastPort;
+
+        socket = new MulticastSocket(mcastPort);
+        socket.setTimeToLive(1);
+        socket.joinGroup(mcastAddr);
+    }
+
+    @Override
+    void start() {
+        new Thread(this).start();
+    }
+
+    @Override
+    public void run() {
+
+        byte[] rbuf = channel.acquireBuffer();
+        DatagramPacket packet = new DatagramPacket(rbuf, rbuf.length);
+
+        // Loop waiting for messages
+        while (!socket.isClosed()) {
+
+            try { // blocking method
+                this.socket.receive(packet);
+
+                // Hand the buffer off to the parsers, or reuse it if the datagram was dropped
+                if (channel.deliver(rbuf, packet.getLength())) {
+                    rbuf = channel.acquireBuffer();
+                }
+                packet.setData(rbuf);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+        }
+    }
+
+    @Override
+    synchronized void send(Message message) throws IOException {
+        byte[] data = message.getBytes();
+
+        DatagramPacket packet = new DatagramPacket(data, data.length, mcastAddr, mcastPort);
+        socket.send(packet);
+    }
+
+    @Override
+    void close() {
+        socket.close();
+    }
+}
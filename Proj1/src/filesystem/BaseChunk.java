@@ -1,11 +1,17 @@
 package filesystem;
 
+import utils.ChunkCodec;
+
 import java.io.Serializable;
 
 public class BaseChunk implements Serializable {
     private String fileID;
     private int chunkNo;
     private Integer replicationDegree;
+    /**
+     * Encoding of the chunk's data, null for chunks serialized by older versions
+     */
+    private ChunkCodec codec;
 
 
     BaseChunk(String fileID, int chunkNo, Integer replicationDegree) {
@@ -29,4 +35,12 @@ public class BaseChunk implements Serializable {
     public int getReplicationDegree() {
         return replicationDegree;
     }
+
+    public ChunkCodec getCodec() {
+        return codec != null ? codec : ChunkCodec.NONE;
+    }
+
+    protected void setCodec(ChunkCodec codec) {
+        this.codec = codec;
+    }
 }
@@ -0,0 +1,178 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-budgeted cache of recently read and saved chunks, with segmented LRU eviction.
+ * <p>
+ * Chunks enter a probationary segment, and are promoted to the protected segment when hit again,
+ * so a burst of chunks read only once can't evict the chunks being requested over and over.
+ * Chunks demoted from the protected segment get another chance in the probationary one.
+ * <p>
+ * Mapped chunks take no heap space, but count against the budget all the same, as they keep their pages mapped.
+ */
+public class ChunkCache {
+    /**
+     * Fraction of the capacity reserved for the protected segment
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final long capacity;
+    private final long protectedCapacity;
+
+    // Both in access order, least recently used first
+    private final LinkedHashMap<String, ByteBuffer> probation;
+    private final LinkedHashMap<String, ByteBuffer> protectedSegment;
+    private long probationBytes;
+    private long protectedBytes;
+
+    /**
+     * Incremented on every invalidation, so reads that raced one don't cache what they read
+     */
+    private long invalidations;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ChunkCache(long capacity) {
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    static String key(String fileID, int chunkNo) {
+        return fileID + "/" + chunkNo;
+    }
+
+    /**
+     * @return A read-only view of the chunk, or null if it isn't cached
+     */
+    synchronized ByteBuffer get(String key) {
+        ByteBuffer data = protectedSegment.get(key);
+
+        if (data == null) {
+            data = probation.remove(key);
+            if (data != null) {
+                probationBytes -= data.remaining();
+                promote(key, data);
+            }
+        }
+
+        if (data == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return data.duplicate();
+    }
+
+    /**
+     * Caches a chunk that was just saved.
+     */
+    synchronized void put(String key, ByteBuffer data) {
+        remove(key);
+
+        if (data.remaining() > capacity)
+            return;
+
+        probation.put(key, data.asReadOnlyBuffer());
+        probationBytes += data.remaining();
+        evict();
+    }
+
+    /**
+     * Caches a chunk that was just read, unless it was invalidated since the read started.
+     *
+     * @param invalidationCount Value of getInvalidationCount() before the read
+     */
+    synchronized void admit(String key, ByteBuffer data, long invalidationCount) {
+        if (invalidationCount == invalidations)
+            put(key, data);
+    }
+
+    synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * Drops a chunk that was deleted.
+     */
+    synchronized void invalidate(String key) {
+        invalidations++;
+        remove(key);
+    }
+
+    private void remove(String key) {
+        ByteBuffer data = probation.remove(key);
+        if (data != null)
+            probationBytes -= data.remaining();
+
+        data = protectedSegment.remove(key);
+        if (data != null)
+            protectedBytes -= data.remaining();
+    }
+
+    private void promote(String key, ByteBuffer data) {
+        protectedSegment.put(key, data);
+        protectedBytes += data.remaining();
+
+        // Demote the least recently used protected chunks, back to the most recently used end of probation
+        Iterator<Map.Entry<String, ByteBuffer>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && protectedSegment.size() > 1) {
+            Map.Entry<String, ByteBuffer> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().remaining();
+
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().remaining();
+        }
+
+        evict();
+    }
+
+    private void evict() {
+        while (probationBytes + protectedBytes > capacity) {
+            LinkedHashMap<String, ByteBuffer> segment = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<ByteBuffer> it = segment.values().iterator();
+            ByteBuffer eldest = it.next();
+            it.remove();
+
+            if (segment == probation)
+                probationBytes -= eldest.remaining();
+            else
+                protectedBytes -= eldest.remaining();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : hits / (double) requests;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getResidentBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
@@ -1,5 +1,6 @@
 package filesystem;
 
+import utils.ChunkCodec;
 import utils.Log;
 
 public class ChunkData extends BaseChunk {
@@ -18,8 +19,16 @@ public class ChunkData extends BaseChunk {
         Log.log("Created CHUNK " + fileID + " @" + chunkNo);
     }
 
+    /**
+     * @param data The chunk's data, encoded with the given codec
+     */
+    public ChunkData(String fileID, int chunkNo, int replicationDegree, byte[] data, ChunkCodec codec) {
+        this(fileID, chunkNo, replicationDegree, data);
+        setCodec(codec);
+    }
+
     public ChunkData(ChunkInfo chunkInfo, byte[] data) {
-        this(chunkInfo.getFileID(), chunkInfo.getChunkNo(), chunkInfo.getReplicationDegree(), data);
+        this(chunkInfo.getFileID(), chunkInfo.getChunkNo(), chunkInfo.getReplicationDegree(), data, chunkInfo.getCodec());
     }
 
 
@@ -0,0 +1,705 @@
+package filesystem;
+
+import utils.ChunkCodec;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of the chunks stored locally, kept in primitive arrays rather than one object per chunk.
+ * <p>
+ * FileIDs are interned to int handles, and each chunk is keyed by its handle and chunkNo packed in a long.
+ * A handle is freed, to be reused, once its file has no chunks left; compact() renumbers the handles in use
+ * and shrinks the table to fit the chunks left.
+ * Keys live in an open addressing table (linear probing), with the chunk's size, replication degree, codec and
+ * mirrors in parallel arrays. Mirrors are a bitmap of peerIDs; the rare peerIDs that don't fit one are
+ * kept in a separate map.
+ * <p>
+ * Slots are also kept in a binary max-heap ordered by the ReclaimPolicy's priority, updated as chunks
+ * change, so the next chunk to remove when reclaiming space is always at its top.
+ * <p>
+ * ChunkInfo objects are only built on demand, as copies.
+ */
+class ChunkIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float MAX_LOAD = 0.75f;
+    private static final long EMPTY = -1;
+    private static final ChunkCodec[] CODECS = ChunkCodec.values();
+
+    /**
+     * PeerIDs below this are kept in the mirror bitmaps
+     */
+    private static final int BITMAP_PEERS = Long.SIZE;
+
+    private final Map<String, Integer> handles;
+    /**
+     * FileID of each handle, null for freed handles
+     */
+    private final List<String> fileIDs;
+    private final Deque<Integer> freeHandles;
+    /**
+     * Number of chunks stored of each file, by handle
+     */
+    private int[] fileChunkCounts;
+
+    private long[] keys;
+    private int[] sizes;
+    private int[] replicationDegrees;
+    /**
+     * Ordinal of each chunk's ChunkCodec
+     */
+    private byte[] codecs;
+    private long[] mirrors;
+    private long[] lastRequested;
+    private int numChunks;
+
+    /**
+     * Slots ordered by reclaim priority, as a binary max-heap of numChunks entries
+     */
+    private int[] heap;
+    /**
+     * Position of each slot in the heap
+     */
+    private int[] heapPositions;
+    private long[] priorities;
+    private ReclaimPolicy policy;
+
+    /**
+     * Mirrors with peerIDs too large for the bitmaps.
+     * Maps (key -> peerIDs)
+     */
+    private final Map<Long, BitSet> overflowMirrors;
+
+    private final ReadWriteLock lock;
+
+    ChunkIndex() {
+        handles = new HashMap<>();
+        fileIDs = new ArrayList<>();
+        freeHandles = new ArrayDeque<>();
+        fileChunkCounts = new int[16];
+        overflowMirrors = new HashMap<>();
+        lock = new ReentrantReadWriteLock();
+        policy = ReclaimPolicy.MOST_REPLICATED;
+
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        sizes = new int[capacity];
+        replicationDegrees = new int[capacity];
+        codecs = new byte[capacity];
+        mirrors = new long[capacity];
+        lastRequested = new long[capacity];
+
+        heap = new int[capacity];
+        heapPositions = new int[capacity];
+        priorities = new long[capacity];
+    }
+
+    /**
+     * Adds the chunk, unless one with the same fileID and chunkNo is already indexed.
+     *
+     * @return True if the chunk was added
+     */
+    boolean add(ChunkInfo chunkInfo) {
+        lock.writeLock().lock();
+        try {
+            int handle = intern(chunkInfo.getFileID());
+            long key = key(handle, chunkInfo.getChunkNo());
+            if (find(key) >= 0)
+                return false;
+
+            if (numChunks + 1 > keys.length * MAX_LOAD)
+                resize(keys.length * 2);
+
+            int slot = insertionSlot(key);
+            keys[slot] = key;
+            sizes[slot] = chunkInfo.getSize();
+            replicationDegrees[slot] = chunkInfo.getReplicationDegree();
+            codecs[slot] = (byte) chunkInfo.getCodec().ordinal();
+            mirrors[slot] = 0;
+            for (Integer peerID : chunkInfo.getMirrors())
+                setMirror(slot, key, peerID);
+            lastRequested[slot] = System.currentTimeMillis();
+
+            numChunks++;
+            fileChunkCounts[handle]++;
+            heapInsert(slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return True if the chunk was indexed
+     */
+    boolean remove(String fileID, int chunkNo) {
+        lock.writeLock().lock();
+        try {
+            Integer handle = handles.get(fileID);
+            if (handle == null)
+                return false;
+
+            int slot = find(key(handle, chunkNo));
+            if (slot < 0)
+                return false;
+
+            removeSlot(slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every chunk of the given file.
+     *
+     * @return The removed chunks, or null if none was indexed
+     */
+    List<ChunkInfo> removeFile(String fileID) {
+        lock.writeLock().lock();
+        try {
+            Integer handle = handles.get(fileID);
+            if (handle == null || fileChunkCounts[handle] == 0)
+                return null;
+
+            List<ChunkInfo> removed = new ArrayList<>(fileChunkCounts[handle]);
+            int slot = 0;
+            while (slot < keys.length && fileChunkCounts[handle] > 0) {
+                // Removing shifts a later key into this slot, so it must be checked again
+                if (keys[slot] != EMPTY && handleOf(keys[slot]) == handle) {
+                    removed.add(toChunkInfo(slot));
+                    removeSlot(slot);
+                } else {
+                    slot++;
+                }
+            }
+
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean contains(String fileID, int chunkNo) {
+        lock.readLock().lock();
+        try {
+            return findSlot(fileID, chunkNo) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean containsFile(String fileID) {
+        lock.readLock().lock();
+        try {
+            Integer handle = handles.get(fileID);
+            return handle != null && fileChunkCounts[handle] > 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return A copy of the chunk's info, or null if it isn't indexed
+     */
+    ChunkInfo get(String fileID, int chunkNo) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(fileID, chunkNo);
+            return slot >= 0 ? toChunkInfo(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The chunk's number of mirrors, or -1 if it isn't indexed
+     */
+    int getNumMirrors(String fileID, int chunkNo) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(fileID, chunkNo);
+            return slot >= 0 ? countMirrors(slot) : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return True if the peer was added, False if it already was a mirror, null if the chunk isn't indexed
+     */
+    Boolean addMirror(String fileID, int chunkNo, int peerID) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(fileID, chunkNo);
+            if (slot < 0)
+                return null;
+
+            boolean added = setMirror(slot, keys[slot], peerID);
+            updatePriority(slot);
+            return added;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return True if the peer was removed, False if it wasn't a mirror, null if the chunk isn't indexed
+     */
+    Boolean removeMirror(String fileID, int chunkNo, int peerID) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(fileID, chunkNo);
+            if (slot < 0)
+                return null;
+
+            boolean removed = clearMirror(slot, keys[slot], peerID);
+            updatePriority(slot);
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records that the chunk was just requested by a GETCHUNK.
+     */
+    void markRequested(String fileID, int chunkNo) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(fileID, chunkNo);
+            if (slot < 0)
+                return;
+
+            lastRequested[slot] = System.currentTimeMillis();
+            updatePriority(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return A copy of the chunk the reclaim policy would remove first, or null if the index is empty
+     */
+    ChunkInfo peekReclaimVictim() {
+        lock.readLock().lock();
+        try {
+            return numChunks > 0 ? toChunkInfo(heap[0]) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the heap from its root, only ever looking at the children of the chunks already taken.
+     *
+     * @return Copies of up to max chunks, in the order the reclaim policy would remove them
+     */
+    List<ChunkInfo> peekReclaimVictims(int max) {
+        lock.readLock().lock();
+        try {
+            List<ChunkInfo> victims = new ArrayList<>(Math.min(max, numChunks));
+            PriorityQueue<Integer> next = new PriorityQueue<>(
+                    (i, j) -> Long.compare(priorities[heap[j]], priorities[heap[i]]));
+            if (numChunks > 0)
+                next.add(0);
+
+            while (victims.size() < max && !next.isEmpty()) {
+                int i = next.poll();
+                victims.add(toChunkInfo(heap[i]));
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < numChunks; child++)
+                    next.add(child);
+            }
+            return victims;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void setReclaimPolicy(ReclaimPolicy policy) {
+        lock.writeLock().lock();
+        try {
+            this.policy = policy;
+
+            for (int i = 0; i < numChunks; i++)
+                priorities[heap[i]] = priority(heap[i]);
+            for (int i = numChunks / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Copies of every chunk indexed, grouped by fileID
+     */
+    Map<String, List<ChunkInfo>> getChunksByFile() {
+        lock.readLock().lock();
+        try {
+            Map<String, List<ChunkInfo>> chunks = new HashMap<>();
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] == EMPTY)
+                    continue;
+
+                ChunkInfo chunkInfo = toChunkInfo(slot);
+                chunks.computeIfAbsent(chunkInfo.getFileID(), k -> new ArrayList<>()).add(chunkInfo);
+            }
+
+            for (List<ChunkInfo> fileChunks : chunks.values())
+                fileChunks.sort((a, b) -> Integer.compare(a.getChunkNo(), b.getChunkNo()));
+            return chunks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Renumbers the handles in use from 0, forgetting the freed ones,
+     * and rebuilds the table with the capacity the chunks left need.
+     */
+    void compact() {
+        lock.writeLock().lock();
+        try {
+            int[] newHandles = new int[fileIDs.size()];
+            List<String> liveFileIDs = new ArrayList<>(handles.size());
+            for (int handle = 0; handle < fileIDs.size(); handle++) {
+                String fileID = fileIDs.get(handle);
+                if (fileID == null)
+                    continue;
+
+                newHandles[handle] = liveFileIDs.size();
+                liveFileIDs.add(fileID);
+            }
+
+            int[] liveChunkCounts = new int[Math.max(16, liveFileIDs.size())];
+            for (int i = 0; i < liveFileIDs.size(); i++) {
+                String fileID = liveFileIDs.get(i);
+                liveChunkCounts[i] = fileChunkCounts[handles.get(fileID)];
+                handles.put(fileID, i);
+            }
+            fileIDs.clear();
+            fileIDs.addAll(liveFileIDs);
+            freeHandles.clear();
+            fileChunkCounts = liveChunkCounts;
+
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != EMPTY)
+                    keys[slot] = key(newHandles[handleOf(keys[slot])], chunkNoOf(keys[slot]));
+            }
+            if (!overflowMirrors.isEmpty()) {
+                Map<Long, BitSet> renumbered = new HashMap<>();
+                for (Map.Entry<Long, BitSet> entry : overflowMirrors.entrySet())
+                    renumbered.put(key(newHandles[handleOf(entry.getKey())], chunkNoOf(entry.getKey())), entry.getValue());
+                overflowMirrors.clear();
+                overflowMirrors.putAll(renumbered);
+            }
+
+            int capacity = INITIAL_CAPACITY;
+            while (numChunks > capacity * MAX_LOAD)
+                capacity *= 2;
+            resize(capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return numChunks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int intern(String fileID) {
+        Integer handle = handles.get(fileID);
+        if (handle != null)
+            return handle;
+
+        handle = freeHandles.poll();
+        if (handle != null) {
+            fileIDs.set(handle, fileID);
+        } else {
+            handle = fileIDs.size();
+            fileIDs.add(fileID);
+            if (handle >= fileChunkCounts.length)
+                fileChunkCounts = Arrays.copyOf(fileChunkCounts, fileChunkCounts.length * 2);
+        }
+        handles.put(fileID, handle);
+
+        return handle;
+    }
+
+    /**
+     * Frees the handle of a file with no chunks left, for intern() to reuse.
+     */
+    private void release(int handle) {
+        handles.remove(fileIDs.get(handle));
+        fileIDs.set(handle, null);
+        freeHandles.push(handle);
+    }
+
+    private static long key(int handle, int chunkNo) {
+        return ((long) handle << Integer.SIZE) | (chunkNo & 0xFFFFFFFFL);
+    }
+
+    private static int handleOf(long key) {
+        return (int) (key >>> Integer.SIZE);
+    }
+
+    private static int chunkNoOf(long key) {
+        return (int) key;
+    }
+
+    private int home(long key) {
+        // Fibonacci hashing, spreads consecutive chunkNos over the table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - Integer.numberOfTrailingZeros(keys.length)));
+    }
+
+    private int findSlot(String fileID, int chunkNo) {
+        Integer handle = handles.get(fileID);
+        return handle != null ? find(key(handle, chunkNo)) : -1;
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = home(key); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return slot;
+        }
+
+        return -1;
+    }
+
+    private int insertionSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = home(key);
+        while (keys[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    /**
+     * Empties the slot, then shifts back the keys after it that would no longer be reachable.
+     */
+    private void removeSlot(int slot) {
+        long key = keys[slot];
+        heapRemove(slot);
+        overflowMirrors.remove(key);
+        if (--fileChunkCounts[handleOf(key)] == 0)
+            release(handleOf(key));
+
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = home(keys[next]);
+            // Move the key to the hole if its home isn't cyclically within (hole, next]
+            boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (reachable)
+                continue;
+
+            moveSlot(next, hole);
+            hole = next;
+        }
+
+        keys[hole] = EMPTY;
+    }
+
+    private void moveSlot(int from, int to) {
+        keys[to] = keys[from];
+        sizes[to] = sizes[from];
+        replicationDegrees[to] = replicationDegrees[from];
+        codecs[to] = codecs[from];
+        mirrors[to] = mirrors[from];
+        lastRequested[to] = lastRequested[from];
+
+        priorities[to] = priorities[from];
+        heapPositions[to] = heapPositions[from];
+        heap[heapPositions[to]] = to;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSizes = sizes;
+        int[] oldReplicationDegrees = replicationDegrees;
+        byte[] oldCodecs = codecs;
+        long[] oldMirrors = mirrors;
+        long[] oldLastRequested = lastRequested;
+        int[] oldHeap = heap;
+        long[] oldPriorities = priorities;
+
+        allocate(capacity);
+        int[] newSlots = new int[oldKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+
+            int slot = insertionSlot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            sizes[slot] = oldSizes[i];
+            replicationDegrees[slot] = oldReplicationDegrees[i];
+            codecs[slot] = oldCodecs[i];
+            mirrors[slot] = oldMirrors[i];
+            lastRequested[slot] = oldLastRequested[i];
+            priorities[slot] = oldPriorities[i];
+            newSlots[i] = slot;
+        }
+
+        // Priorities are unchanged, so the heap keeps its order
+        for (int i = 0; i < numChunks; i++) {
+            heap[i] = newSlots[oldHeap[i]];
+            heapPositions[heap[i]] = i;
+        }
+    }
+
+    private long priority(int slot) {
+        return policy.priority(sizes[slot], replicationDegrees[slot], countMirrors(slot), lastRequested[slot]);
+    }
+
+    /**
+     * Adds the slot at the end of the heap, which must already count it in numChunks.
+     */
+    private void heapInsert(int slot) {
+        int i = numChunks - 1;
+        heap[i] = slot;
+        heapPositions[slot] = i;
+        priorities[slot] = priority(slot);
+        siftUp(i);
+    }
+
+    /**
+     * Removes the slot from the heap, and from numChunks.
+     */
+    private void heapRemove(int slot) {
+        int i = heapPositions[slot];
+        int last = heap[--numChunks];
+        if (i == numChunks)
+            return;
+
+        heap[i] = last;
+        heapPositions[last] = i;
+        siftDown(i);
+        siftUp(heapPositions[last]);
+    }
+
+    private void updatePriority(int slot) {
+        long previous = priorities[slot];
+        priorities[slot] = priority(slot);
+
+        if (priorities[slot] > previous)
+            siftUp(heapPositions[slot]);
+        else if (priorities[slot] < previous)
+            siftDown(heapPositions[slot]);
+    }
+
+    private void siftUp(int i) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (priorities[heap[parent]] >= priorities[slot])
+                break;
+
+            heap[i] = heap[parent];
+            heapPositions[heap[i]] = i;
+            i = parent;
+        }
+
+        heap[i] = slot;
+        heapPositions[slot] = i;
+    }
+
+    private void siftDown(int i) {
+        int slot = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= numChunks)
+                break;
+            if (child + 1 < numChunks && priorities[heap[child + 1]] > priorities[heap[child]])
+                child++;
+            if (priorities[heap[child]] <= priorities[slot])
+                break;
+
+            heap[i] = heap[child];
+            heapPositions[heap[i]] = i;
+            i = child;
+        }
+
+        heap[i] = slot;
+        heapPositions[slot] = i;
+    }
+
+    private boolean setMirror(int slot, long key, int peerID) {
+        if (peerID >= 0 && peerID < BITMAP_PEERS) {
+            long bit = 1L << peerID;
+            boolean added = (mirrors[slot] & bit) == 0;
+            mirrors[slot] |= bit;
+            return added;
+        }
+
+        BitSet overflow = overflowMirrors.computeIfAbsent(key, k -> new BitSet());
+        boolean added = !overflow.get(peerID);
+        overflow.set(peerID);
+        return added;
+    }
+
+    private boolean clearMirror(int slot, long key, int peerID) {
+        if (peerID >= 0 && peerID < BITMAP_PEERS) {
+            long bit = 1L << peerID;
+            boolean removed = (mirrors[slot] & bit) != 0;
+            mirrors[slot] &= ~bit;
+            return removed;
+        }
+
+        BitSet overflow = overflowMirrors.get(key);
+        if (overflow == null || !overflow.get(peerID))
+            return false;
+
+        overflow.clear(peerID);
+        if (overflow.isEmpty())
+            overflowMirrors.remove(key);
+        return true;
+    }
+
+    private int countMirrors(int slot) {
+        int count = Long.bitCount(mirrors[slot]);
+        if (!overflowMirrors.isEmpty()) {
+            BitSet overflow = overflowMirrors.get(keys[slot]);
+            if (overflow != null)
+                count += overflow.cardinality();
+        }
+
+        return count;
+    }
+
+    private ChunkInfo toChunkInfo(int slot) {
+        long key = keys[slot];
+        ChunkInfo chunkInfo = new ChunkInfo(fileIDs.get(handleOf(key)), chunkNoOf(key), replicationDegrees[slot], sizes[slot],
+                CODECS[codecs[slot]]);
+
+        for (long bits = mirrors[slot]; bits != 0; bits &= bits - 1)
+            chunkInfo.addMirror(Long.numberOfTrailingZeros(bits));
+
+        BitSet overflow = overflowMirrors.get(key);
+        if (overflow != null) {
+            for (int peerID = overflow.nextSetBit(0); peerID >= 0; peerID = overflow.nextSetBit(peerID + 1))
+                chunkInfo.addMirror(peerID);
+        }
+
+        return chunkInfo;
+    }
+}
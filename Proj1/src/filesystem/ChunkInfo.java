@@ -1,5 +1,10 @@
 package filesystem;
 
+import utils.ChunkCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -16,6 +21,14 @@ public class ChunkInfo extends BaseChunk {
         this.size = size;
     }
 
+    /**
+     * @param size Size of the chunk's data, encoded with the given codec
+     */
+    public ChunkInfo(String fileID, int chunkNo, int replicationDegree, int size, ChunkCodec codec) {
+        this(fileID, chunkNo, replicationDegree, size);
+        setCodec(codec);
+    }
+
     /**
      * Removes the given peerID from the mirrors Set.
      * @param peerID
@@ -34,6 +47,10 @@ public class ChunkInfo extends BaseChunk {
         return mirrors.add(peerID);
     }
 
+    Set<Integer> getMirrors() {
+        return mirrors;
+    }
+
     public int getNumMirrors() {
         return mirrors.size();
     }
@@ -42,4 +59,31 @@ public class ChunkInfo extends BaseChunk {
         return size;
     }
 
+    /**
+     * Writes the chunk's binary form, without its fileID or codec.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(getChunkNo());
+        out.writeInt(getReplicationDegree());
+        out.writeInt(size);
+
+        Integer[] mirrorIDs = mirrors.toArray(new Integer[0]);
+        out.writeShort(mirrorIDs.length);
+        for (Integer mirrorID : mirrorIDs)
+            out.writeInt(mirrorID);
+    }
+
+    static ChunkInfo readFrom(DataInput in, String fileID) throws IOException {
+        int chunkNo = in.readInt();
+        int replicationDegree = in.readInt();
+        int size = in.readInt();
+        ChunkInfo chunkInfo = new ChunkInfo(fileID, chunkNo, replicationDegree, size);
+
+        int numMirrors = in.readUnsignedShort();
+        for (int i = 0; i < numMirrors; i++)
+            chunkInfo.addMirror(in.readInt());
+
+        return chunkInfo;
+    }
+
 }
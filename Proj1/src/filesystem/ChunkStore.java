@@ -0,0 +1,71 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the chunks backed up on this peer are kept.
+ * <p>
+ * Implementations may assume writes and deletes of chunks of the same file don't run concurrently,
+ * as SystemManager serializes them, but must allow reads concurrently with anything.
+ */
+public interface ChunkStore extends Closeable {
+
+    enum StoreType {
+        /**
+         * One file per chunk
+         */
+        FILES,
+        /**
+         * Chunks appended to large segment files
+         */
+        SEGMENTS
+    }
+
+    boolean contains(String fileID, int chunkNo);
+
+    /**
+     * Saves a chunk, replacing it if it's already stored.
+     *
+     * @return Bytes of disk the chunk took, which may be less than its size if its content was already stored
+     */
+    long save(String fileID, int chunkNo, byte[] data) throws IOException;
+
+    /**
+     * @return Most bytes of disk saving a chunk of the given size may take, including any records of the store's own
+     */
+    default long getMaxDiskBytes(int size) {
+        return size;
+    }
+
+    /**
+     * @return The chunk's data, or null if it isn't stored
+     */
+    byte[] load(String fileID, int chunkNo) throws IOException;
+
+    /**
+     * Maps the chunk's data into memory, instead of copying it, for sending it as is.
+     *
+     * @return A read-only view of the chunk's data, or null if it isn't stored
+     */
+    ByteBuffer map(String fileID, int chunkNo) throws IOException;
+
+    /**
+     * @return Bytes of disk freed, which may be less than the chunk's size if its content is still used,
+     * or -1 if it wasn't stored
+     */
+    long delete(String fileID, int chunkNo) throws IOException;
+
+    /**
+     * @return True if deleting the chunk wouldn't free its data, as other chunks still use it
+     */
+    default boolean isShared(String fileID, int chunkNo) throws IOException {
+        return false;
+    }
+
+    /**
+     * Makes every chunk saved so far durable, surviving a crash of the machine.
+     */
+    void sync() throws IOException;
+}
@@ -0,0 +1,241 @@
+package filesystem;
+
+import filesystem.SystemManager.SAVE_STATE;
+import utils.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes chunks to the store from a single thread, in batches, making each batch durable as a group.
+ * <p>
+ * A write completes only once it reached the chosen SyncPolicy's durability point, so STORED is never
+ * sent for a chunk a crash could still lose. The queue needs no bound of its own,
+ * as a write's space is reserved in the MemoryManager before it's queued.
+ */
+public class ChunkWriter implements Runnable {
+
+    public enum SyncPolicy {
+        /**
+         * Leave flushing to the operating system
+         */
+        NONE,
+        /**
+         * Sync once per batch of writes
+         */
+        BATCH,
+        /**
+         * Sync after every chunk
+         */
+        CHUNK
+    }
+
+    /**
+     * Most chunks written between syncs
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    static class PendingWrite {
+        final String fileID;
+        final int chunkNo;
+        final byte[] data;
+        /**
+         * Bytes of space reserved for the chunk before it was queued
+         */
+        final long reserved;
+        private final long queuedAt;
+        private final CompletableFuture<SAVE_STATE> result;
+        SAVE_STATE state;
+        /**
+         * Bytes of disk the chunk took, once written
+         */
+        long diskBytes;
+
+        PendingWrite(String fileID, int chunkNo, byte[] data, long reserved) {
+            this.fileID = fileID;
+            this.chunkNo = chunkNo;
+            this.data = data;
+            this.reserved = reserved;
+            this.queuedAt = System.nanoTime();
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    private final SystemManager systemManager;
+    private final ChunkStore chunkStore;
+    private final SyncPolicy syncPolicy;
+    private final BlockingQueue<PendingWrite> queue;
+
+    private final AtomicLong batches;
+    private final AtomicLong chunksWritten;
+    private final AtomicLong syncs;
+    private final AtomicLong totalLatencyNanos;
+    private final AtomicLong maxLatencyNanos;
+
+    ChunkWriter(SystemManager systemManager, ChunkStore chunkStore, SyncPolicy syncPolicy) {
+        this.systemManager = systemManager;
+        this.chunkStore = chunkStore;
+        this.syncPolicy = syncPolicy;
+        this.queue = new LinkedBlockingQueue<>();
+
+        batches = new AtomicLong();
+        chunksWritten = new AtomicLong();
+        syncs = new AtomicLong();
+        totalLatencyNanos = new AtomicLong();
+        maxLatencyNanos = new AtomicLong();
+    }
+
+    /**
+     * Queues a chunk, whose space must have been reserved already.
+     *
+     * @param reserved Bytes of space reserved for the chunk, released once written, less what it took
+     * @return Completed with SUCCESS once the chunk is durable, EXISTS if it was already stored, or FAILURE
+     */
+    CompletableFuture<SAVE_STATE> write(String fileID, int chunkNo, byte[] data, long reserved) {
+        PendingWrite write = new PendingWrite(fileID, chunkNo, data, reserved);
+        queue.add(write);
+        return write.result;
+    }
+
+    @Override
+    public void run() {
+        List<PendingWrite> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) { // Must not stop the writer, or every later write would wait forever
+                Log.logError("Couldn't write batch of chunks: " + e);
+                failBatch(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        List<PendingWrite> saved = new ArrayList<>(batch.size());
+
+        for (PendingWrite write : batch) {
+            systemManager.storeChunk(write);
+            if (write.state != SAVE_STATE.SUCCESS)
+                continue;
+
+            if (syncPolicy == SyncPolicy.CHUNK)
+                sync(Collections.singletonList(write));
+            else
+                saved.add(write);
+        }
+
+        if (syncPolicy == SyncPolicy.BATCH && !saved.isEmpty())
+            sync(saved);
+
+        batches.incrementAndGet();
+        for (PendingWrite write : batch) {
+            systemManager.finishWrite(write);
+
+            if (write.state == SAVE_STATE.SUCCESS) {
+                chunksWritten.incrementAndGet();
+                long latency = System.nanoTime() - write.queuedAt;
+                totalLatencyNanos.addAndGet(latency);
+                maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            }
+
+            write.result.complete(write.state);
+        }
+    }
+
+    /**
+     * Fails the writes of a batch that weren't completed, removing any of them already stored,
+     * as they can't be acknowledged.
+     */
+    private void failBatch(List<PendingWrite> batch) {
+        for (PendingWrite write : batch) {
+            if (write.result.isDone())
+                continue;
+
+            try {
+                if (write.state == SAVE_STATE.SUCCESS)
+                    systemManager.unstoreChunk(write.fileID, write.chunkNo);
+                write.state = SAVE_STATE.FAILURE;
+                systemManager.finishWrite(write);
+            } catch (RuntimeException e) {
+                Log.logError("Couldn't fail write of chunk " + write.fileID + "/" + write.chunkNo + ": " + e);
+            } finally {
+                write.result.complete(SAVE_STATE.FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Makes the written chunks durable. If that fails, they are removed from the store and failed,
+     * as they can't be acknowledged.
+     */
+    private void sync(List<PendingWrite> written) {
+        try {
+            chunkStore.sync();
+            syncs.incrementAndGet();
+        } catch (IOException e) {
+            Log.logError("Couldn't sync chunks to disk: " + e.getMessage());
+
+            for (PendingWrite write : written) {
+                systemManager.unstoreChunk(write.fileID, write.chunkNo);
+                write.state = SAVE_STATE.FAILURE;
+            }
+        }
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "ChunkWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getChunksWritten() {
+        return chunksWritten.get();
+    }
+
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Average time from a chunk being queued to it being durable, in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = chunksWritten.get();
+        if (count == 0)
+            return 0;
+
+        return totalLatencyNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -1,18 +1,56 @@
 package filesystem;
 
+import utils.ChunkCodec;
 import utils.Log;
 
+import java.io.*;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 
+/**
+ * Persisted as a compact binary snapshot plus a journal of the mutations made since.
+ * Mutations are appended to the journal as they happen, which is flushed periodically,
+ * and compacted into a new snapshot once it grows past COMPACTION_THRESHOLD.
+ */
 public class Database extends PermanentStateClass {
     private static final long serialVersionUID = 1L;
 
+    private static final int SNAPSHOT_MAGIC = 0x53444231;
+    /**
+     * Snapshots whose files carry their chunks' fileIDs and hashes
+     */
+    private static final int SNAPSHOT_MAGIC_V2 = 0x53444232;
+    /**
+     * Snapshots whose stored chunks carry their codec
+     */
+    private static final int SNAPSHOT_MAGIC_V3 = 0x53444233;
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Journal size, in bytes, after which it's compacted into a new snapshot
+     */
+    private static final long COMPACTION_THRESHOLD = 1 << 20;
+
+    // Journal record types
+    private static final byte ADD_RESTORABLE_FILE = 1;
+    private static final byte REMOVE_RESTORABLE_FILE = 2;
+    private static final byte ADD_CHUNK = 3;
+    private static final byte REMOVE_CHUNK = 4;
+    private static final byte REMOVE_FILE_CHUNKS = 5;
+    private static final byte ADD_CHUNK_MIRROR = 6;
+    private static final byte REMOVE_CHUNK_MIRROR = 7;
+    private static final byte ADD_FILE_MIRROR = 8;
+    private static final byte DELETE_FILE_MIRROR = 9;
+    private static final byte ADD_FILE_TO_DELETE = 10;
+    private static final byte REMOVE_FILE_TO_DELETE = 11;
+    private static final byte ADD_RESTORABLE_FILE_WITH_MANIFEST = 12;
+    private static final byte ADD_CHUNK_WITH_CODEC = 13;
+
     /**
      * Contains local files that were backed up,
      * and may be restored.
@@ -25,8 +63,20 @@ public class Database extends PermanentStateClass {
      */
     private ConcurrentMap<String, FileInfo> filesByPath;
 
+    /**
+     * Counts the local files with chunks stored under each fileID other than their own,
+     * that is, under the fileID of an earlier version of the file.
+     * Maps (fileID -> number of files)
+     */
+    private transient ConcurrentMap<String, Integer> referencedFileIDs;
+
     /**
      * Contains backed up Chunks (on disk memory).
+     */
+    private transient ChunkIndex chunkIndex;
+
+    /**
+     * Backed up Chunks of databases serialized by older versions, moved into chunkIndex once loaded.
      * Maps (fileID -> (ChunkNum -> ChunkInfo))
      */
     private ConcurrentMap<String, ConcurrentMap<Integer, ChunkInfo>> chunksBackedUp;
@@ -44,28 +94,110 @@ public class Database extends PermanentStateClass {
      */
     private Set<String> filesToDelete;
 
-    Database(String savePath) {
+    /**
+     * Mutations since the last snapshot.
+     * Each mutation is applied and journaled while holding the journal's lock,
+     * so records are journaled in the order they were applied.
+     */
+    private transient Journal journal;
+
+    private Database() {
         filesBackedUp = new ConcurrentHashMap<>();
         filesByPath = new ConcurrentHashMap<>();
-        chunksBackedUp = new ConcurrentHashMap<>();
+        referencedFileIDs = new ConcurrentHashMap<>();
+        chunkIndex = new ChunkIndex();
 
         fileMirrors = new ConcurrentHashMap<>();
-        filesToDelete = new HashSet<>();
+        filesToDelete = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Loads the database from its snapshot, if any, and replays its journal on top of it.
+     * Databases saved as serialized objects, by older versions, are converted to snapshots.
+     */
+    static Database load(File file) throws IOException, ClassNotFoundException {
+        Database database;
+
+        if (!file.exists() || isSnapshot(file)) {
+            database = new Database();
+            if (file.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    database.readSnapshot(in);
+                }
+            }
+
+            int numRecords = Journal.replay(journalFile(file.getAbsolutePath()), database::replayRecord);
+            Log.log("Replayed " + numRecords + " database journal records");
 
-        this.setUp(savePath);
+            database.setUp(file.getAbsolutePath());
+        } else {
+            database = (Database) loadFromFile(file);
+        }
+
+        database.compact();
+        return database;
+    }
+
+    @Override
+    protected void setUp(String absPath) {
+        if (chunkIndex == null)
+            chunkIndex = new ChunkIndex();
+        if (referencedFileIDs == null) {
+            referencedFileIDs = new ConcurrentHashMap<>();
+            for (FileInfo fileInfo : filesBackedUp.values())
+                addReferencedFileIDs(fileInfo);
+        }
+        if (chunksBackedUp != null) {
+            for (ConcurrentMap<Integer, ChunkInfo> fileChunks : chunksBackedUp.values())
+                for (ChunkInfo chunkInfo : fileChunks.values())
+                    chunkIndex.add(chunkInfo);
+            chunksBackedUp = null;
+        }
+
+        journal = new Journal(journalFile(absPath));
+        super.setUp(absPath);
+    }
+
+    private static File journalFile(String savePath) {
+        return new File(savePath + JOURNAL_SUFFIX);
+    }
+
+    private static boolean isSnapshot(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int magic = in.readInt();
+            return magic == SNAPSHOT_MAGIC || magic == SNAPSHOT_MAGIC_V2 || magic == SNAPSHOT_MAGIC_V3;
+        } catch (EOFException e) {
+            return false;
+        }
     }
 
     public boolean addToFilesToDelete(String fileID) {
-        return filesToDelete.add(fileID);
+        synchronized (journal) {
+            if (!filesToDelete.add(fileID))
+                return false;
+            journal.append(ADD_FILE_TO_DELETE, out -> out.writeUTF(fileID));
+            return true;
+        }
     }
 
     public boolean removeFromFilesToDelete(String fileID) {
-        return  filesToDelete.remove(fileID);
+        synchronized (journal) {
+            if (!filesToDelete.remove(fileID))
+                return false;
+            journal.append(REMOVE_FILE_TO_DELETE, out -> out.writeUTF(fileID));
+            return true;
+        }
     }
 
     public void addFileMirror(String fileID, int senderID) {
-        fileMirrors.putIfAbsent(fileID, new ConcurrentSkipListSet<>());
-        fileMirrors.get(fileID).add(senderID);
+        synchronized (journal) {
+            if (!fileMirrors.computeIfAbsent(fileID, k -> new ConcurrentSkipListSet<>()).add(senderID))
+                return;
+            journal.append(ADD_FILE_MIRROR, out -> {
+                out.writeUTF(fileID);
+                out.writeInt(senderID);
+            });
+        }
     }
 
     public Set<String> getFilesToDelete(int senderID) {
@@ -84,27 +216,72 @@ public class Database extends PermanentStateClass {
     }
 
     public void deleteFileMirror(String fileID, int senderID) {
-        Set<Integer> peers = fileMirrors.get(fileID);
-        if (peers != null)
-            peers.remove(senderID);
+        synchronized (journal) {
+            Set<Integer> peers = fileMirrors.get(fileID);
+            if (peers == null || !peers.remove(senderID))
+                return;
+            journal.append(DELETE_FILE_MIRROR, out -> {
+                out.writeUTF(fileID);
+                out.writeInt(senderID);
+            });
+        }
     }
 
     public void addRestorableFile(FileInfo fileInfo) {
-        filesBackedUp.put(fileInfo.getFileID(), fileInfo);
+        synchronized (journal) {
+            applyAddRestorableFile(fileInfo);
+            journal.append(ADD_RESTORABLE_FILE_WITH_MANIFEST, fileInfo::writeTo);
+        }
+    }
+
+    private void applyAddRestorableFile(FileInfo fileInfo) {
+        FileInfo previous = filesBackedUp.put(fileInfo.getFileID(), fileInfo);
+        if (previous != null)
+            removeReferencedFileIDs(previous);
+        addReferencedFileIDs(fileInfo);
         filesByPath.put(fileInfo.getPath(), fileInfo);
     }
 
+    private void addReferencedFileIDs(FileInfo fileInfo) {
+        for (String fileID : fileInfo.getStoredFileIDs()) {
+            if (!fileID.equals(fileInfo.getFileID()))
+                referencedFileIDs.merge(fileID, 1, Integer::sum);
+        }
+    }
+
+    private void removeReferencedFileIDs(FileInfo fileInfo) {
+        for (String fileID : fileInfo.getStoredFileIDs()) {
+            if (!fileID.equals(fileInfo.getFileID()))
+                referencedFileIDs.computeIfPresent(fileID, (k, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
     public void removeRestorableFile(FileInfo fileInfo) {
-        filesBackedUp.remove(fileInfo.getFileID());
-        filesByPath.remove(fileInfo.getPath());
+        synchronized (journal) {
+            applyRemoveRestorableFile(fileInfo.getFileID(), fileInfo.getPath());
+            journal.append(REMOVE_RESTORABLE_FILE, out -> {
+                out.writeUTF(fileInfo.getFileID());
+                out.writeUTF(fileInfo.getPath());
+            });
+        }
+    }
+
+    private void applyRemoveRestorableFile(String fileID, String path) {
+        FileInfo fileInfo = filesBackedUp.remove(fileID);
+        if (fileInfo != null)
+            removeReferencedFileIDs(fileInfo);
+        filesByPath.remove(path);
     }
 
     public void removeRestorableFileByPath(String path) {
         removeRestorableFile(filesByPath.get(path));
     }
 
+    /**
+     * @return True if the fileID is of a local file, or some of a local file's chunks are stored under it
+     */
     public boolean hasBackedUpFileById(String fileID) {
-        return filesBackedUp.containsKey(fileID);
+        return filesBackedUp.containsKey(fileID) || referencedFileIDs.containsKey(fileID);
     }
 
     public boolean hasBackedUpFileByPath(String path) {
@@ -115,44 +292,50 @@ public class Database extends PermanentStateClass {
         return filesByPath.get(pathName);
     }
 
-    // chunksBackedUp
+    // chunkIndex
     public boolean hasChunk(String fileID, int chunkNo) {
-        Map<Integer, ChunkInfo> fileChunks = chunksBackedUp.get(fileID);
-
-        return fileChunks != null && fileChunks.containsKey(chunkNo);
+        return chunkIndex.contains(fileID, chunkNo);
     }
 
     public void addChunk(ChunkInfo chunkInfo, Integer parentPeerID) {
         chunkInfo.addMirror(parentPeerID);
 
-        String fileID = chunkInfo.getFileID();
-        int chunkNo = chunkInfo.getChunkNo();
-
-        ConcurrentMap<Integer, ChunkInfo> fileChunks;
-        fileChunks = chunksBackedUp.getOrDefault(fileID, new ConcurrentHashMap<>());
-        fileChunks.putIfAbsent(chunkNo, chunkInfo);
-
-        chunksBackedUp.putIfAbsent(fileID, fileChunks);
+        synchronized (journal) {
+            if (!chunkIndex.add(chunkInfo))
+                return;
+            journal.append(ADD_CHUNK_WITH_CODEC, out -> {
+                out.writeUTF(chunkInfo.getFileID());
+                chunkInfo.writeTo(out);
+                out.writeByte(chunkInfo.getCodec().ordinal());
+            });
+        }
     }
 
+    /**
+     * @return A copy of the chunk's info, or null if it isn't stored
+     */
     public ChunkInfo getChunkInfo(String fileID, int chunkNo) {
-        Map<Integer, ChunkInfo> fileChunks = chunksBackedUp.get(fileID);
-
-        return fileChunks != null ? fileChunks.get(chunkNo) : null;
+        return chunkIndex.get(fileID, chunkNo);
     }
 
     public void removeChunk(String fileID, int chunkNo) {
-        if (!chunksBackedUp.containsKey(fileID))
-            return;
-
-        chunksBackedUp.get(fileID).remove(chunkNo);
+        synchronized (journal) {
+            if (!chunkIndex.remove(fileID, chunkNo))
+                return;
+            journal.append(REMOVE_CHUNK, out -> {
+                out.writeUTF(fileID);
+                out.writeInt(chunkNo);
+            });
+        }
     }
 
-    public Map<Integer, ChunkInfo> removeChunksBackedUpByFileID(String fileID) {
-        if (!chunksBackedUp.containsKey(fileID))
-            return null;
-
-        return chunksBackedUp.remove(fileID);
+    public List<ChunkInfo> removeChunksBackedUpByFileID(String fileID) {
+        synchronized (journal) {
+            List<ChunkInfo> fileChunks = chunkIndex.removeFile(fileID);
+            if (fileChunks != null)
+                journal.append(REMOVE_FILE_CHUNKS, out -> out.writeUTF(fileID));
+            return fileChunks;
+        }
     }
 
     public int getNumChunksByFilePath(String path) {
@@ -164,12 +347,16 @@ public class Database extends PermanentStateClass {
     }
 
     public Boolean addChunkMirror(String fileID, int chunkNo, int peerID) {
-        boolean ret;
-        try {
-            ret = chunksBackedUp.get(fileID).get(chunkNo).addMirror(peerID);
-        } catch (NullPointerException e) {
-            Log.logError("addChunkMirror " + e.getMessage());
-            return null;
+        Boolean ret;
+        synchronized (journal) {
+            ret = chunkIndex.addMirror(fileID, chunkNo, peerID);
+            if (ret == null) {
+                Log.logError("addChunkMirror ChunkData not found: " + fileID + "/" + chunkNo);
+                return null;
+            }
+
+            if (ret)
+                journal.append(ADD_CHUNK_MIRROR, out -> writeChunkMirror(out, fileID, chunkNo, peerID));
         }
 
         return ret;
@@ -184,23 +371,31 @@ public class Database extends PermanentStateClass {
      * @return True if the peerID was a mirror, False if it wasn't, null if ChunkData was not found
      */
     public Boolean removeChunkMirror(String fileID, int chunkNo, int peerID) {
-        boolean ret;
-        try {
-            ret = chunksBackedUp.get(fileID).get(chunkNo).removeMirror(peerID);
-        } catch (NullPointerException e) {
-            Log.logError("(removeChunkMirror) ChunkData not found: " + e.getMessage());
-            return null;
+        Boolean ret;
+        synchronized (journal) {
+            ret = chunkIndex.removeMirror(fileID, chunkNo, peerID);
+            if (ret == null) {
+                Log.logError("(removeChunkMirror) ChunkData not found: " + fileID + "/" + chunkNo);
+                return null;
+            }
+
+            if (ret)
+                journal.append(REMOVE_CHUNK_MIRROR, out -> writeChunkMirror(out, fileID, chunkNo, peerID));
         }
 
         return ret;
     }
 
+    private static void writeChunkMirror(DataOutput out, String fileID, int chunkNo, int peerID) throws IOException {
+        out.writeUTF(fileID);
+        out.writeInt(chunkNo);
+        out.writeInt(peerID);
+    }
+
     public Integer getChunkPerceivedReplication(String fileID, int chunkNo) {
-        int ret;
-        try {
-            ret = chunksBackedUp.get(fileID).get(chunkNo).getNumMirrors();
-        } catch (NullPointerException e) {
-            Log.logError("getChunkPerceivedReplication " + e.getMessage());
+        int ret = chunkIndex.getNumMirrors(fileID, chunkNo);
+        if (ret < 0) {
+            Log.logError("getChunkPerceivedReplication ChunkData not found: " + fileID + "/" + chunkNo);
             return null;
         }
 
@@ -208,42 +403,223 @@ public class Database extends PermanentStateClass {
     }
 
     public boolean hasChunks(String fileID) {
-        return chunksBackedUp.containsKey(fileID);
+        return chunkIndex.containsFile(fileID);
     }
 
     public Collection<FileInfo> getFilesBackedUp() {
         return filesBackedUp.values();
     }
 
-    public ConcurrentMap<String, ConcurrentMap<Integer, ChunkInfo>> getChunksBackedUp() {
-        return chunksBackedUp;
+    /**
+     * @return Copies of the backed up Chunks' info, grouped by fileID and sorted by ChunkNum
+     */
+    public Map<String, List<ChunkInfo>> getChunksBackedUp() {
+        return chunkIndex.getChunksByFile();
     }
 
     /**
-     * Getter for any one ChunkData to be removed for reclaiming memory space.
+     * Getter for the chunks to be removed first for reclaiming memory space.
      *
-     * @return The chosen ChunkData.
+     * @param max Most chunks returned
+     * @return The chosen chunks, in the order given by the reclaim policy.
      */
-    public ChunkInfo getChunkForRemoval() {
-        // Currently, chunk for removal is most backed-up chunk
-        return getMostBackedUpChunk();
+    public List<ChunkInfo> getChunksForRemoval(int max) {
+        return chunkIndex.peekReclaimVictims(max);
     }
 
-    private ChunkInfo getMostBackedUpChunk() {
-        ChunkInfo mostBackedUpChunk = null;
-        int maxMirroring = -1;
+    public void setReclaimPolicy(ReclaimPolicy policy) {
+        chunkIndex.setReclaimPolicy(policy);
+    }
 
-        for (ConcurrentMap.Entry<String, ConcurrentMap<Integer, ChunkInfo>> fileEntry : chunksBackedUp.entrySet()) {
-            for (ConcurrentMap.Entry<Integer, ChunkInfo> chunkEntry : fileEntry.getValue().entrySet()) {
-                int numMirrors = chunkEntry.getValue().getNumMirrors();
-                if (numMirrors > maxMirroring) {
-                    maxMirroring = numMirrors;
-                    mostBackedUpChunk = chunkEntry.getValue();
-                }
+    /**
+     * Records that a GETCHUNK requested the chunk, for the LEAST_RECENTLY_REQUESTED reclaim policy.
+     */
+    public void markChunkRequested(String fileID, int chunkNo) {
+        chunkIndex.markRequested(fileID, chunkNo);
+    }
+
+    /**
+     * The database is modified if its journal holds records not yet on disk.
+     */
+    @Override
+    boolean isModified() {
+        return journal.hasPending();
+    }
+
+    /**
+     * Flushes the journal, or compacts it into a new snapshot if it grew too large.
+     */
+    @Override
+    long writePermanentState() throws IOException {
+        if (journal.size() > COMPACTION_THRESHOLD)
+            return compact();
+        else
+            return journal.flush();
+    }
+
+    /**
+     * Compacts the chunk index, then writes a new snapshot and truncates the journal.
+     * Mutations are held off meanwhile, so the snapshot covers exactly the truncated records.
+     *
+     * @return Size of the snapshot, in bytes
+     */
+    private synchronized long compact() throws IOException {
+        synchronized (journal) {
+            chunkIndex.compact();
+            long size = writeAtomically(new File(getSavePath()), this::writeSnapshot);
+            journal.truncate();
+            Log.log("Compacted database into a " + size + " byte snapshot");
+            return size;
+        }
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC_V3);
+
+        out.writeInt(filesBackedUp.size());
+        for (FileInfo fileInfo : filesBackedUp.values())
+            fileInfo.writeTo(out);
+
+        out.writeInt(filesByPath.size());
+        for (Map.Entry<String, FileInfo> entry : filesByPath.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue().getFileID());
+        }
+
+        Map<String, List<ChunkInfo>> chunks = chunkIndex.getChunksByFile();
+        out.writeInt(chunks.size());
+        for (Map.Entry<String, List<ChunkInfo>> fileEntry : chunks.entrySet()) {
+            out.writeUTF(fileEntry.getKey());
+            out.writeInt(fileEntry.getValue().size());
+            for (ChunkInfo chunkInfo : fileEntry.getValue()) {
+                chunkInfo.writeTo(out);
+                out.writeByte(chunkInfo.getCodec().ordinal());
+            }
+        }
+
+        out.writeInt(fileMirrors.size());
+        for (Map.Entry<String, Set<Integer>> entry : fileMirrors.entrySet()) {
+            Integer[] mirrorIDs = entry.getValue().toArray(new Integer[0]);
+            out.writeUTF(entry.getKey());
+            out.writeInt(mirrorIDs.length);
+            for (Integer mirrorID : mirrorIDs)
+                out.writeInt(mirrorID);
+        }
+
+        out.writeInt(filesToDelete.size());
+        for (String fileID : filesToDelete)
+            out.writeUTF(fileID);
+    }
+
+    private void readSnapshot(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V2 && magic != SNAPSHOT_MAGIC_V3)
+            throw new IOException("Not a database snapshot");
+
+        int numFiles = in.readInt();
+        for (int i = 0; i < numFiles; i++) {
+            FileInfo fileInfo = FileInfo.readFrom(in, magic != SNAPSHOT_MAGIC);
+            filesBackedUp.put(fileInfo.getFileID(), fileInfo);
+            addReferencedFileIDs(fileInfo);
+        }
+
+        int numPaths = in.readInt();
+        for (int i = 0; i < numPaths; i++) {
+            String path = in.readUTF();
+            FileInfo fileInfo = filesBackedUp.get(in.readUTF());
+            if (fileInfo != null)
+                filesByPath.put(path, fileInfo);
+        }
+
+        int numChunkFiles = in.readInt();
+        for (int i = 0; i < numChunkFiles; i++) {
+            String fileID = in.readUTF();
+            int numChunks = in.readInt();
+            for (int j = 0; j < numChunks; j++) {
+                ChunkInfo chunkInfo = ChunkInfo.readFrom(in, fileID);
+                if (magic == SNAPSHOT_MAGIC_V3)
+                    chunkInfo.setCodec(readCodec(in));
+                chunkIndex.add(chunkInfo);
             }
         }
 
-        return mostBackedUpChunk;
+        int numMirroredFiles = in.readInt();
+        for (int i = 0; i < numMirroredFiles; i++) {
+            String fileID = in.readUTF();
+            Set<Integer> mirrors = new ConcurrentSkipListSet<>();
+            int numMirrors = in.readInt();
+            for (int j = 0; j < numMirrors; j++)
+                mirrors.add(in.readInt());
+            fileMirrors.put(fileID, mirrors);
+        }
+
+        int numFilesToDelete = in.readInt();
+        for (int i = 0; i < numFilesToDelete; i++)
+            filesToDelete.add(in.readUTF());
+    }
+
+    private static ChunkCodec readCodec(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= ChunkCodec.values().length)
+            throw new IOException("Unknown chunk codec: " + ordinal);
+        return ChunkCodec.values()[ordinal];
+    }
+
+    private void replayRecord(byte type, DataInput in) throws IOException {
+        String fileID;
+        ChunkInfo chunkInfo;
+
+        switch (type) {
+            case ADD_RESTORABLE_FILE:
+                applyAddRestorableFile(FileInfo.readFrom(in, false));
+                break;
+            case ADD_RESTORABLE_FILE_WITH_MANIFEST:
+                applyAddRestorableFile(FileInfo.readFrom(in, true));
+                break;
+            case REMOVE_RESTORABLE_FILE:
+                fileID = in.readUTF();
+                applyRemoveRestorableFile(fileID, in.readUTF());
+                break;
+            case ADD_CHUNK:
+                chunkIndex.add(ChunkInfo.readFrom(in, in.readUTF()));
+                break;
+            case ADD_CHUNK_WITH_CODEC:
+                chunkInfo = ChunkInfo.readFrom(in, in.readUTF());
+                chunkInfo.setCodec(readCodec(in));
+                chunkIndex.add(chunkInfo);
+                break;
+            case REMOVE_CHUNK:
+                chunkIndex.remove(in.readUTF(), in.readInt());
+                break;
+            case REMOVE_FILE_CHUNKS:
+                chunkIndex.removeFile(in.readUTF());
+                break;
+            case ADD_CHUNK_MIRROR:
+                chunkIndex.addMirror(in.readUTF(), in.readInt(), in.readInt());
+                break;
+            case REMOVE_CHUNK_MIRROR:
+                chunkIndex.removeMirror(in.readUTF(), in.readInt(), in.readInt());
+                break;
+            case ADD_FILE_MIRROR:
+                fileID = in.readUTF();
+                fileMirrors.computeIfAbsent(fileID, k -> new ConcurrentSkipListSet<>()).add(in.readInt());
+                break;
+            case DELETE_FILE_MIRROR:
+                fileID = in.readUTF();
+                Set<Integer> peers = fileMirrors.get(fileID);
+                int deletedMirror = in.readInt();
+                if (peers != null)
+                    peers.remove(deletedMirror);
+                break;
+            case ADD_FILE_TO_DELETE:
+                filesToDelete.add(in.readUTF());
+                break;
+            case REMOVE_FILE_TO_DELETE:
+                filesToDelete.remove(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown database journal record: " + type);
+        }
     }
 
     @Override
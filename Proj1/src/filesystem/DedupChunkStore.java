@@ -0,0 +1,163 @@
+package filesystem;
+
+import utils.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores each distinct chunk content once, under its SHA-256, whatever fileIDs and chunkNos it's saved as.
+ * <p>
+ * Both are kept in the underlying store. A saved chunk is a reference, holding the name of its content,
+ * stored under its fileID with REFERENCE_PREFIX, so it's never confused with a chunk's data.
+ * The content is stored under that name, with the data as chunk 0 and its reference count as chunk 1,
+ * and is deleted with its last reference.
+ * <p>
+ * References are counted before they are written, and uncounted after they are deleted,
+ * so a crash in between can only leak content, never delete content still referenced.
+ * Chunks saved before deduplication was enabled are kept, and read, as they are.
+ */
+class DedupChunkStore implements ChunkStore {
+    private static final String REFERENCE_PREFIX = "REF-";
+    private static final String CONTENT_PREFIX = "SHA256-";
+    private static final int CONTENT_NAME_LENGTH = CONTENT_PREFIX.length() + 64;
+
+    private static final int DATA = 0;
+    private static final int REFERENCES = 1;
+
+    private final ChunkStore store;
+
+    /**
+     * Reference counts of the contents used since startup, loaded from the store on first use.
+     * Also serializes changes to contents, which are shared by chunks of different files.
+     */
+    private final Map<String, Integer> referenceCounts;
+
+    DedupChunkStore(ChunkStore store) {
+        this.store = store;
+        this.referenceCounts = new HashMap<>();
+    }
+
+    @Override
+    public boolean contains(String fileID, int chunkNo) {
+        return store.contains(REFERENCE_PREFIX + fileID, chunkNo) || store.contains(fileID, chunkNo);
+    }
+
+    /**
+     * The reference, and the reference count of new content, are charged along with the data.
+     */
+    @Override
+    public long save(String fileID, int chunkNo, byte[] data) throws IOException {
+        String content = CONTENT_PREFIX + Utils.hash(data);
+        long diskBytes = 0;
+
+        synchronized (referenceCounts) {
+            int references = getReferenceCount(content);
+            if (references == 0)
+                diskBytes += store.save(content, DATA, data) + Integer.BYTES;
+            setReferenceCount(content, references + 1);
+        }
+
+        diskBytes += store.save(REFERENCE_PREFIX + fileID, chunkNo, content.getBytes(StandardCharsets.US_ASCII));
+        return diskBytes;
+    }
+
+    @Override
+    public long getMaxDiskBytes(int size) {
+        return size + Integer.BYTES + CONTENT_NAME_LENGTH;
+    }
+
+    @Override
+    public byte[] load(String fileID, int chunkNo) throws IOException {
+        String content = loadReference(fileID, chunkNo);
+        if (content == null)
+            return store.load(fileID, chunkNo);
+
+        return store.load(content, DATA);
+    }
+
+    @Override
+    public ByteBuffer map(String fileID, int chunkNo) throws IOException {
+        String content = loadReference(fileID, chunkNo);
+        if (content == null)
+            return store.map(fileID, chunkNo);
+
+        return store.map(content, DATA);
+    }
+
+    @Override
+    public long delete(String fileID, int chunkNo) throws IOException {
+        String content = loadReference(fileID, chunkNo);
+        if (content == null)
+            return store.delete(fileID, chunkNo);
+
+        long freed = store.delete(REFERENCE_PREFIX + fileID, chunkNo);
+        if (freed < 0)
+            return -1;
+
+        synchronized (referenceCounts) {
+            int references = getReferenceCount(content) - 1;
+            if (references > 0) {
+                setReferenceCount(content, references);
+                return freed;
+            }
+
+            referenceCounts.remove(content);
+            freed += Math.max(store.delete(content, DATA), 0);
+            if (store.delete(content, REFERENCES) >= 0)
+                freed += Integer.BYTES;
+            return freed;
+        }
+    }
+
+    /**
+     * @return True if the chunk's content is also referenced by other chunks, so deleting it frees only its reference
+     */
+    @Override
+    public boolean isShared(String fileID, int chunkNo) throws IOException {
+        String content = loadReference(fileID, chunkNo);
+        if (content == null)
+            return false;
+
+        synchronized (referenceCounts) {
+            return getReferenceCount(content) > 1;
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        store.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /**
+     * @return Name of the chunk's content, or null if the chunk was saved before deduplication was enabled
+     */
+    private String loadReference(String fileID, int chunkNo) throws IOException {
+        byte[] reference = store.load(REFERENCE_PREFIX + fileID, chunkNo);
+        return reference != null ? new String(reference, StandardCharsets.US_ASCII) : null;
+    }
+
+    private int getReferenceCount(String content) throws IOException {
+        Integer references = referenceCounts.get(content);
+        if (references != null)
+            return references;
+
+        byte[] stored = store.load(content, REFERENCES);
+        references = stored != null ? ByteBuffer.wrap(stored).getInt() : 0;
+        referenceCounts.put(content, references);
+        return references;
+    }
+
+    private void setReferenceCount(String content, int references) throws IOException {
+        store.save(content, REFERENCES, ByteBuffer.allocate(Integer.BYTES).putInt(references).array());
+        referenceCounts.put(content, references);
+    }
+}
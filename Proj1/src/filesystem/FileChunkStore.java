@@ -0,0 +1,133 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps each chunk in its own file, at chunks/fileID/chunkNo.
+ */
+class FileChunkStore implements ChunkStore {
+    private final String chunksPath;
+
+    /**
+     * Chunks saved since the last sync, or null if sync() is never called
+     */
+    private final List<Path> unsynced;
+
+    /**
+     * @param synced False if sync() is never called, so saved chunks aren't kept track of for it
+     */
+    FileChunkStore(String chunksPath, boolean synced) {
+        this.chunksPath = chunksPath;
+        this.unsynced = synced ? new ArrayList<>() : null;
+    }
+
+    private Path getChunkPath(String fileID, int chunkNo) {
+        return Paths.get(chunksPath + fileID + "/" + chunkNo);
+    }
+
+    @Override
+    public boolean contains(String fileID, int chunkNo) {
+        return Files.exists(getChunkPath(fileID, chunkNo));
+    }
+
+    /**
+     * The chunk is written to a temporary file and then renamed, so readers never see it half written.
+     */
+    @Override
+    public long save(String fileID, int chunkNo, byte[] data) throws IOException {
+        Path path = getChunkPath(fileID, chunkNo);
+
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, data);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+
+        if (unsynced != null) {
+            synchronized (unsynced) {
+                unsynced.add(path);
+            }
+        }
+        return data.length;
+    }
+
+    @Override
+    public byte[] load(String fileID, int chunkNo) throws IOException {
+        try {
+            return Files.readAllBytes(getChunkPath(fileID, chunkNo));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The mapping stays valid after the chunk is deleted or replaced, as the file is never modified in place.
+     */
+    @Override
+    public ByteBuffer map(String fileID, int chunkNo) throws IOException {
+        try (FileChannel channel = FileChannel.open(getChunkPath(fileID, chunkNo), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long delete(String fileID, int chunkNo) throws IOException {
+        Path path = getChunkPath(fileID, chunkNo);
+
+        try {
+            long size = Files.size(path);
+            Files.delete(path);
+            return size;
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Syncs every chunk saved since the last sync, and then their folders, so their renames are durable too.
+     */
+    @Override
+    public void sync() throws IOException {
+        if (unsynced == null)
+            return;
+
+        List<Path> paths;
+        synchronized (unsynced) {
+            paths = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+
+        Set<Path> folders = new LinkedHashSet<>();
+        for (Path path : paths) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                continue; // Deleted meanwhile
+            }
+            folders.add(path.getParent());
+        }
+
+        for (Path folder : folders) {
+            try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,94 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static protocols.ProtocolSettings.MAX_CHUNK_SIZE;
+
+/**
+ * Reads a file's chunks one at a time, as they are requested,
+ * so only the chunks currently being backed up are kept in memory.
+ * <p>
+ * As with the protocol, a file whose size is a multiple of MAX_CHUNK_SIZE
+ * ends with an empty chunk.
+ */
+public class FileChunker implements Iterator<ChunkData>, Closeable {
+    private final FileChannel channel;
+    private final String fileID;
+    private final int replicationDegree;
+
+    private final long fileSize;
+    private final long numChunks;
+    private int nextChunkNo = 0;
+
+    public FileChunker(String pathname, String fileID, int replicationDegree) throws IOException {
+        this.channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.READ);
+        this.fileID = fileID;
+        this.replicationDegree = replicationDegree;
+
+        this.fileSize = channel.size();
+        this.numChunks = fileSize / MAX_CHUNK_SIZE + 1;
+    }
+
+    public long getNumChunks() {
+        return numChunks;
+    }
+
+    public int getChunkSize(int chunkNo) {
+        return (int) Math.min(MAX_CHUNK_SIZE, fileSize - (long) chunkNo * MAX_CHUNK_SIZE);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextChunkNo < numChunks;
+    }
+
+    /**
+     * @throws UncheckedIOException If the chunk couldn't be read
+     */
+    @Override
+    public ChunkData next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        return getChunk(nextChunkNo++);
+    }
+
+    /**
+     * Reads any of the file's chunks, without moving the iterator.
+     *
+     * @throws UncheckedIOException If the chunk couldn't be read
+     */
+    public ChunkData getChunk(int chunkNo) {
+        byte[] data = new byte[getChunkSize(chunkNo)];
+
+        try {
+            readFully(ByteBuffer.wrap(data), (long) chunkNo * MAX_CHUNK_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read chunk " + chunkNo, e);
+        }
+
+        return new ChunkData(fileID, chunkNo, replicationDegree, data);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
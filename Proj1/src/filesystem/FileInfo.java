@@ -1,8 +1,16 @@
 package filesystem;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public class FileInfo implements Serializable {
     private static final long serialVersionUID = 4L;
@@ -13,9 +21,26 @@ public class FileInfo implements Serializable {
     private int numChunks;
     private int desiredReplicationDegree;
     private ChunkInfo[] chunks; //ChunkNo -> ChunkInfo
+    /**
+     * SHA-256 of each chunk's content, or null for chunks that may not be stored.
+     * Null if the file wasn't backed up incrementally.
+     */
+    private byte[][] chunkHashes;
+    /**
+     * fileIDs of earlier backups that none of the chunks use, but whose chunks are kept, as a backup
+     * that didn't fully replicate may not replace them yet. Null if there are none.
+     */
+    private Set<String> retainedFileIDs;
 
 
     public FileInfo(String filePath, String fileID, int replicationDegree, ChunkInfo[] chunkInfoArray) {
+        this(filePath, fileID, replicationDegree, chunkInfoArray, null);
+    }
+
+    /**
+     * Chunks may belong to earlier versions of the file, under their fileIDs, if they didn't change since.
+     */
+    public FileInfo(String filePath, String fileID, int replicationDegree, ChunkInfo[] chunkInfoArray, byte[][] chunkHashes) {
         this.fileID = fileID;
         Path path = Paths.get(filePath);
         this.fileName = path.getFileName().toString();
@@ -24,6 +49,7 @@ public class FileInfo implements Serializable {
         this.numChunks = chunkInfoArray.length;
         this.desiredReplicationDegree = replicationDegree;
         this.chunks = chunkInfoArray;
+        this.chunkHashes = chunkHashes;
     }
 
     public String getFileID() {
@@ -49,4 +75,118 @@ public class FileInfo implements Serializable {
     public ChunkInfo[] getChunks() {
         return chunks;
     }
+
+    /**
+     * @return The chunk's SHA-256, or null if it's unknown
+     */
+    public byte[] getChunkHash(int chunkNo) {
+        return chunkHashes != null ? chunkHashes[chunkNo] : null;
+    }
+
+    /**
+     * @return fileIDs the file's chunks are stored under, its own first
+     */
+    public Set<String> getChunkFileIDs() {
+        Set<String> fileIDs = new LinkedHashSet<>();
+        fileIDs.add(fileID);
+        for (ChunkInfo chunk : chunks)
+            fileIDs.add(chunk.getFileID());
+        return fileIDs;
+    }
+
+    /**
+     * @return fileIDs the file keeps chunks stored under, its chunks' first, then the retained ones.
+     * The file's own fileID is left out if none of its chunks were sent under it.
+     */
+    public Set<String> getStoredFileIDs() {
+        Set<String> fileIDs = new LinkedHashSet<>();
+        for (ChunkInfo chunk : chunks)
+            fileIDs.add(chunk.getFileID());
+        if (retainedFileIDs != null)
+            fileIDs.addAll(retainedFileIDs);
+        return fileIDs;
+    }
+
+    /**
+     * Keeps the chunks stored under the given fileIDs until the file is deleted, or backed up again.
+     */
+    public void retainFileIDs(Collection<String> fileIDs) {
+        Set<String> retained = new LinkedHashSet<>(fileIDs);
+        retained.removeAll(getChunkFileIDs());
+        retainedFileIDs = retained.isEmpty() ? null : retained;
+    }
+
+    /**
+     * Writes the file's binary form, with its chunks' fileIDs and hashes.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(fileID);
+        out.writeUTF(pathName);
+        out.writeInt(desiredReplicationDegree);
+
+        // Chunks of earlier versions point into a table of their fileIDs, 0 being the file's own,
+        // followed by the retained ones, which no chunk points to
+        List<String> fileIDs = new ArrayList<>(getChunkFileIDs());
+        if (retainedFileIDs != null)
+            fileIDs.addAll(retainedFileIDs);
+        out.writeInt(fileIDs.size() - 1);
+        for (String chunkFileID : fileIDs.subList(1, fileIDs.size()))
+            out.writeUTF(chunkFileID);
+
+        out.writeInt(chunks.length);
+        for (ChunkInfo chunk : chunks) {
+            if (fileIDs.size() > 1)
+                out.writeInt(fileIDs.indexOf(chunk.getFileID()));
+            chunk.writeTo(out);
+        }
+
+        out.writeBoolean(chunkHashes != null);
+        if (chunkHashes != null) {
+            for (byte[] hash : chunkHashes) {
+                out.writeByte(hash != null ? hash.length : 0);
+                if (hash != null)
+                    out.write(hash);
+            }
+        }
+    }
+
+    /**
+     * @param withManifest False for files written before chunks had their own fileIDs and hashes
+     */
+    static FileInfo readFrom(DataInput in, boolean withManifest) throws IOException {
+        String fileID = in.readUTF();
+        String pathName = in.readUTF();
+        int desiredReplicationDegree = in.readInt();
+
+        String[] fileIDs = new String[withManifest ? in.readInt() + 1 : 1];
+        fileIDs[0] = fileID;
+        for (int i = 1; i < fileIDs.length; i++)
+            fileIDs[i] = in.readUTF();
+
+        ChunkInfo[] chunks = new ChunkInfo[in.readInt()];
+        for (int i = 0; i < chunks.length; i++) {
+            String chunkFileID = fileIDs.length > 1 ? fileIDs[in.readInt()] : fileID;
+            chunks[i] = ChunkInfo.readFrom(in, chunkFileID);
+        }
+
+        Set<String> retainedFileIDs = new LinkedHashSet<>();
+        for (int i = 1; i < fileIDs.length; i++)
+            retainedFileIDs.add(fileIDs[i]);
+
+        byte[][] chunkHashes = null;
+        if (withManifest && in.readBoolean()) {
+            chunkHashes = new byte[chunks.length][];
+            for (int i = 0; i < chunks.length; i++) {
+                int length = in.readUnsignedByte();
+                if (length > 0) {
+                    chunkHashes[i] = new byte[length];
+                    in.readFully(chunkHashes[i]);
+                }
+            }
+        }
+
+        FileInfo fileInfo = new FileInfo(pathName, fileID, desiredReplicationDegree, chunks, chunkHashes);
+        fileInfo.retainFileIDs(retainedFileIDs);
+        return fileInfo;
+    }
 }
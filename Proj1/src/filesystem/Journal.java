@@ -0,0 +1,113 @@
+package filesystem;
+
+import utils.Log;
+
+import java.io.*;
+
+/**
+ * Append-only log of mutations to a PermanentStateClass.
+ * <p>
+ * Records are buffered in memory as they're appended, and only reach the disk on flush,
+ * so an idle journal does no I/O at all.
+ */
+class Journal {
+
+    interface RecordWriter {
+        void write(DataOutput out) throws IOException;
+    }
+
+    interface RecordReader {
+        void read(byte type, DataInput in) throws IOException;
+    }
+
+    private final File file;
+    private final ByteArrayOutputStream pending;
+    private final DataOutputStream pendingOut;
+
+    /**
+     * Bytes already on disk
+     */
+    private long size;
+
+    Journal(File file) {
+        this.file = file;
+        this.pending = new ByteArrayOutputStream();
+        this.pendingOut = new DataOutputStream(pending);
+        this.size = file.length();
+    }
+
+    synchronized void append(byte type, RecordWriter writer) {
+        try {
+            pendingOut.writeByte(type);
+            writer.write(pendingOut);
+        } catch (IOException e) {
+            // Writes to a ByteArrayOutputStream don't fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the buffered records to the journal's file.
+     *
+     * @return Number of bytes written
+     */
+    long flush() throws IOException {
+        byte[] records;
+        synchronized (this) {
+            if (pending.size() == 0)
+                return 0;
+            records = pending.toByteArray();
+            pending.reset();
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(records);
+        }
+
+        size += records.length;
+        return records.length;
+    }
+
+    /**
+     * Drops every record, buffered or on disk.
+     * Meant to be called once a snapshot covering them has been written.
+     */
+    synchronized void truncate() throws IOException {
+        pending.reset();
+        if (file.exists() && !file.delete())
+            throw new IOException("Couldn't delete journal " + file);
+        size = 0;
+    }
+
+    synchronized boolean hasPending() {
+        return pending.size() > 0;
+    }
+
+    synchronized long size() {
+        return size + pending.size();
+    }
+
+    /**
+     * Feeds every complete record in the given journal file to the reader.
+     * A record cut short, e.g. by a crash mid-flush, ends the replay.
+     *
+     * @return Number of records replayed
+     */
+    static int replay(File file, RecordReader reader) throws IOException {
+        if (!file.exists())
+            return 0;
+
+        int numRecords = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int type;
+            while ((type = in.read()) != -1) {
+                reader.read((byte) type, in);
+                numRecords++;
+            }
+        } catch (EOFException e) {
+            Log.logWarning("Journal " + file.getName() + " ends with an incomplete record");
+        }
+
+        return numRecords;
+    }
+}
@@ -2,17 +2,44 @@ package filesystem;
 
 import utils.Log;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the space used by stored chunks.
+ * <p>
+ * Space is reserved before a chunk is written, and committed once the write succeeds, or released otherwise.
+ * Reserving is a single atomic check-and-add, so concurrent writes can never overcommit the space
+ * between checking it and writing.
+ */
 public class MemoryManager extends PermanentStateClass {
     private static final long serialVersionUID = 2L;
 
-    private long maxMemory;
+    private volatile long maxMemory;
+    /**
+     * Committed space, as saved to disk
+     */
     private long usedMemory;
 
+    /**
+     * Committed and reserved space
+     */
+    private transient AtomicLong allocated;
+    /**
+     * Committed space
+     */
+    private transient AtomicLong committed;
+
     MemoryManager(long maxMemory, String savePath) {
         this.maxMemory = maxMemory;
         this.usedMemory = 0;
+        this.allocated = new AtomicLong();
+        this.committed = new AtomicLong();
 
         this.setUp(savePath);
+        markModified();
     }
 
     public long getMaxMemory() {
@@ -21,32 +48,71 @@ public class MemoryManager extends PermanentStateClass {
 
     public void setMaxMemory(int maxMemory) {
         this.maxMemory = maxMemory;
+        markModified();
     }
 
     public long getUsedMemory() {
-        return this.usedMemory;
+        return committed.get();
     }
 
     public long getAvailableMemory() {
-        return maxMemory - usedMemory;
+        return maxMemory - allocated.get();
+    }
+
+    /**
+     * Reserves space for a write, if there is enough available.
+     *
+     * @return True if the space was reserved, and must later be committed or released
+     */
+    public boolean reserveMemory(long n) {
+        long current;
+        do {
+            current = allocated.get();
+            if (current + n > maxMemory) {
+                Log.logWarning("Tried to surpass memory restrictions");
+                return false;
+            }
+        } while (!allocated.compareAndSet(current, current + n));
+
+        return true;
+    }
+
+    /**
+     * Turns reserved space into used space, once the write it was reserved for succeeded.
+     */
+    public void commitMemory(long n) {
+        long used = committed.addAndGet(n);
+        markModified();
+        Log.logWarning("Used memory: " + used + " / " + maxMemory);
+    }
+
+    /**
+     * Releases reserved space, if the write it was reserved for failed or wasn't needed.
+     */
+    public void releaseMemory(long n) {
+        allocated.addAndGet(-n);
     }
 
     public void reduceUsedMemory(long n) {
-        usedMemory -= n;
-        if (usedMemory < 0) {
-            usedMemory = 0;
+        long used = committed.addAndGet(-n);
+        allocated.addAndGet(-n);
+        if (used < 0) {
+            committed.addAndGet(-used);
+            allocated.addAndGet(-used);
             Log.logError("Used memory went below 0");
         }
+        markModified();
     }
 
-    public boolean increaseUsedMemory(long n) {
-        if (usedMemory + n > maxMemory) {
-            Log.logWarning("Tried to surpass memory restrictions");
-            return false;
-        }
-        usedMemory += n;
-        Log.logWarning("Used memory: " + usedMemory + " / " + maxMemory);
-        return true;
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        usedMemory = committed.get();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        allocated = new AtomicLong(usedMemory);
+        committed = new AtomicLong(usedMemory);
     }
 
 }
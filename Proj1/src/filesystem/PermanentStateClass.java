@@ -3,18 +3,42 @@ package filesystem;
 import utils.Log;
 
 import java.io.*;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * State saved to disk periodically, and on shutdown.
+ * <p>
+ * All instances are saved by a single scheduler thread, and only when they were modified
+ * since their last save. Subclasses must call markModified() after every change to their state.
+ */
 public abstract class PermanentStateClass implements Serializable {
+    private static final long serialVersionUID = 8999049753155962179L;
+
+    interface StateWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
 
     /**
      * Period between file saves, in milliseconds
      */
-    private final long SAVE_PERIOD = 1000;
+    private static final long SAVE_PERIOD = 1000;
+
+    private static final List<PermanentStateClass> instances = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService scheduler;
 
     private String savePath;
 
+    private transient AtomicLong modifications;
+    private transient long savedModifications;
+    private transient PersistenceStatistics statistics;
+
     static PermanentStateClass loadFromFile(File file) throws IOException, ClassNotFoundException {
         PermanentStateClass obj;
 
@@ -34,30 +58,114 @@ public abstract class PermanentStateClass implements Serializable {
 
     protected void setUp(String absPath) {
         this.savePath = absPath;
-        setUpPeriodicSaves();
+        this.modifications = new AtomicLong();
+        this.savedModifications = 0;
+        this.statistics = new PersistenceStatistics();
+
+        instances.add(this);
+        startScheduler();
     }
 
-    private void setUpPeriodicSaves() {
-        PermanentStateClass obj = this;
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
+    private static synchronized void startScheduler() {
+        if (scheduler != null)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PermanentState");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(PermanentStateClass::saveAll, SAVE_PERIOD, SAVE_PERIOD, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(PermanentStateClass::saveAll));
+    }
+
+    private static void saveAll() {
+        for (PermanentStateClass obj : instances) {
+            try {
                 obj.savePermanentState();
+            } catch (RuntimeException e) {
+                Log.logError("Couldn't save permanent state: " + e.getMessage());
             }
-        }, SAVE_PERIOD, SAVE_PERIOD);
+        }
     }
 
+    String getSavePath() {
+        return savePath;
+    }
+
+    public PersistenceStatistics getPersistenceStatistics() {
+        return statistics;
+    }
+
+    protected void markModified() {
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * @return True if the state changed since it was last saved
+     */
+    boolean isModified() {
+        return modifications.get() != savedModifications;
+    }
+
+    /**
+     * Saves the state, unless it wasn't modified since the last save.
+     */
     synchronized void savePermanentState() {
+        if (!isModified()) {
+            statistics.recordSkipped();
+            return;
+        }
+
+        long start = System.nanoTime();
         try {
-            FileOutputStream out = new FileOutputStream(savePath);
-            ObjectOutputStream oos = new ObjectOutputStream(out);
-            oos.writeObject(this);
-            oos.close();
+            long bytes = writePermanentState();
+            statistics.recordSnapshot(bytes, System.nanoTime() - start);
         } catch (IOException e) {
             Log.logError("Couldn't save permanent state");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes the whole object to its file, serialized.
+     * Called with the object's lock held, so subclasses that also mutate their state
+     * under it are snapshotted consistently.
+     *
+     * @return Number of bytes written
+     */
+    long writePermanentState() throws IOException {
+        long modificationsSaved = modifications.get();
+
+        long bytes = writeAtomically(new File(savePath), out -> {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(this);
+            oos.flush();
+        });
+
+        savedModifications = modificationsSaved;
+        return bytes;
+    }
+
+    /**
+     * Writes a file through a temporary one, which then atomically replaces it.
+     * A crash mid-write leaves the previous version of the file intact.
+     *
+     * @return Number of bytes written
+     */
+    static long writeAtomically(File file, StateWriter writer) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            writer.write(out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return file.length();
+    }
+
 }
@@ -0,0 +1,58 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshots written, and skipped for lack of changes, by a PermanentStateClass.
+ */
+public class PersistenceStatistics {
+    private final AtomicLong snapshots;
+    private final AtomicLong skipped;
+    private final AtomicLong bytesWritten;
+    private final AtomicLong totalDurationNanos;
+    private final AtomicLong maxDurationNanos;
+
+    PersistenceStatistics() {
+        snapshots = new AtomicLong();
+        skipped = new AtomicLong();
+        bytesWritten = new AtomicLong();
+        totalDurationNanos = new AtomicLong();
+        maxDurationNanos = new AtomicLong();
+    }
+
+    void recordSnapshot(long bytes, long durationNanos) {
+        snapshots.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+        totalDurationNanos.addAndGet(durationNanos);
+        maxDurationNanos.accumulateAndGet(durationNanos, Math::max);
+    }
+
+    void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public double getAverageDurationMillis() {
+        long count = getSnapshotCount();
+        if (count == 0)
+            return 0;
+
+        return totalDurationNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxDurationMillis() {
+        return maxDurationNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,37 @@
+package filesystem;
+
+/**
+ * Order in which stored chunks are chosen for removal when reclaiming space.
+ * Chunks with the highest priority are removed first.
+ */
+public enum ReclaimPolicy {
+    /**
+     * Chunks with the most mirrors beyond their desired replication degree
+     */
+    MOST_REPLICATED {
+        @Override
+        long priority(int size, int replicationDegree, int numMirrors, long lastRequested) {
+            return numMirrors - replicationDegree;
+        }
+    },
+    /**
+     * Largest chunks, which free the most space per REMOVED sent
+     */
+    LARGEST_FIRST {
+        @Override
+        long priority(int size, int replicationDegree, int numMirrors, long lastRequested) {
+            return size;
+        }
+    },
+    /**
+     * Chunks requested by a GETCHUNK the longest time ago
+     */
+    LEAST_RECENTLY_REQUESTED {
+        @Override
+        long priority(int size, int replicationDegree, int numMirrors, long lastRequested) {
+            return -lastRequested;
+        }
+    };
+
+    abstract long priority(int size, int replicationDegree, int numMirrors, long lastRequested);
+}
@@ -0,0 +1,154 @@
+package filesystem;
+
+import utils.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static protocols.ProtocolSettings.MAX_CHUNK_SIZE;
+
+/**
+ * A file being restored. Each chunk is written to its place in the file as soon as it arrives.
+ */
+public class RestoredFile implements Closeable {
+    private final Path path;
+    private final FileChannel channel;
+    private final int numChunks;
+    /**
+     * fileID each chunk was sent under, which may be that of an earlier backup of the file
+     */
+    private final String[] chunkFileIDs;
+
+    /**
+     * Chunks already written
+     */
+    private final BitSet received;
+    private final CountDownLatch remaining;
+    /**
+     * One permit per chunk written since the last awaitChunk()
+     */
+    private final Semaphore arrivals;
+
+    /**
+     * Creates the file with its final size, replacing any previous restore of it.
+     */
+    public RestoredFile(String pathname, FileInfo fileInfo, long fileSize) throws IOException {
+        this.path = Paths.get(pathname);
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.numChunks = fileInfo.getNumChunks();
+
+        this.chunkFileIDs = new String[numChunks];
+        for (int i = 0; i < numChunks; i++)
+            chunkFileIDs[i] = fileInfo.getChunks()[i].getFileID();
+
+        this.received = new BitSet(numChunks);
+        this.remaining = new CountDownLatch(numChunks);
+        this.arrivals = new Semaphore(0);
+
+        if (fileSize > 0)
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+    }
+
+    /**
+     * @return True if the file's chunk chunkNo is the one sent under fileID,
+     * and not that of an earlier backup the file still has other chunks of
+     */
+    public boolean isChunkOf(String fileID, int chunkNo) {
+        return chunkNo >= 0 && chunkNo < numChunks && chunkFileIDs[chunkNo].equals(fileID);
+    }
+
+    /**
+     * Writes a chunk at its offset in the file, unless it was already written.
+     *
+     * @return True if the chunk was written, False if it was a duplicate, not one of the file's, or couldn't be written
+     */
+    public boolean writeChunk(String fileID, int chunkNo, ByteBuffer data) {
+        if (!isChunkOf(fileID, chunkNo) || data.remaining() > MAX_CHUNK_SIZE) {
+            Log.logWarning("Ignoring invalid chunk " + fileID + "/" + chunkNo + " of restored file");
+            return false;
+        }
+
+        synchronized (received) {
+            if (received.get(chunkNo))
+                return false;
+            received.set(chunkNo);
+        }
+
+        try {
+            long position = (long) chunkNo * MAX_CHUNK_SIZE;
+            while (data.hasRemaining())
+                position += channel.write(data, position);
+        } catch (IOException e) {
+            Log.logError("Couldn't write chunk " + chunkNo + " of restored file: " + e.getMessage());
+            synchronized (received) {
+                received.clear(chunkNo);
+            }
+            return false;
+        }
+
+        remaining.countDown();
+        arrivals.release();
+        return true;
+    }
+
+    public boolean hasChunk(int chunkNo) {
+        synchronized (received) {
+            return received.get(chunkNo);
+        }
+    }
+
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    public int getNumChunksReceived() {
+        return numChunks - (int) remaining.getCount();
+    }
+
+    /**
+     * Blocks until a chunk is written, or the timeout elapses.
+     * Chunks written since the last call return immediately.
+     *
+     * @return True if any chunk was written
+     */
+    public boolean awaitChunk(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!arrivals.tryAcquire(timeout, unit))
+            return false;
+
+        arrivals.drainPermits();
+        return true;
+    }
+
+    public boolean isComplete() {
+        return remaining.getCount() == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Closes and removes an incomplete file.
+     */
+    public void discard() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            Log.logError("Couldn't remove incomplete restored file: " + path);
+        }
+    }
+}
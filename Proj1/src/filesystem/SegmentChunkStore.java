@@ -0,0 +1,512 @@
+package filesystem;
+
+import utils.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured store, appending chunks to large segment files and finding them through an in-memory index.
+ * <p>
+ * Deleting a chunk appends a tombstone. Segments mostly made of deleted chunks are compacted in the
+ * background: their live chunks are copied to the active segment, and the segment file is removed.
+ * At startup the index is rebuilt by replaying the segments in order.
+ * <p>
+ * Records are a type (1 byte), the fileID's length (2 bytes), the fileID, and the chunkNo (4 bytes).
+ * PUT records follow with the data's length (4 bytes), the data and its CRC32 (4 bytes).
+ */
+class SegmentChunkStore implements ChunkStore {
+    private static final long SEGMENT_SIZE = 64 << 20;
+    /**
+     * Fraction of a segment that must be garbage for it to be compacted
+     */
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+    /**
+     * Period between compaction runs, in seconds
+     */
+    private static final long COMPACTION_PERIOD = 10;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private interface RecordVisitor {
+        void visit(byte type, String fileID, int chunkNo, long dataOffset, int length, int recordSize) throws IOException;
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private volatile FileChannel channel;
+        private volatile boolean deleted;
+
+        /**
+         * Bytes written, the offset of the next record
+         */
+        private volatile long size;
+        /**
+         * Bytes of PUT records still in the index
+         */
+        private final AtomicLong liveBytes;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = open();
+            this.liveBytes = new AtomicLong();
+        }
+
+        private FileChannel open() throws IOException {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Reopens the channel, if it was closed by an interrupted reader.
+         */
+        synchronized FileChannel reopen(FileChannel closed) throws IOException {
+            if (deleted)
+                throw new ClosedChannelException();
+            if (channel == closed)
+                channel = open();
+            return channel;
+        }
+
+        void read(ByteBuffer buffer, long position) throws IOException {
+            FileChannel current = channel;
+            try {
+                readFully(current, buffer, position);
+            } catch (ClosedChannelException e) {
+                buffer.clear();
+                readFully(reopen(current), buffer, position);
+            }
+        }
+
+        ByteBuffer map(long position, int length) throws IOException {
+            FileChannel current = channel;
+            try {
+                return current.map(FileChannel.MapMode.READ_ONLY, position, length);
+            } catch (ClosedChannelException e) {
+                return reopen(current).map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException();
+            }
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long dataOffset;
+        private final int length;
+        private final int recordSize;
+
+        Location(Segment segment, long dataOffset, int length, int recordSize) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private final Path directory;
+    private final ConcurrentMap<String, Location> index;
+    private final ConcurrentSkipListMap<Integer, Segment> segments;
+
+    /**
+     * Held while appending records and updating the index accordingly,
+     * so the order of records in the segments matches the order of changes to the index.
+     */
+    private final Object appendLock;
+    private volatile Segment active;
+
+    private final ScheduledExecutorService compactor;
+
+    SegmentChunkStore(String path) throws IOException {
+        directory = new File(path).toPath();
+        index = new ConcurrentHashMap<>();
+        segments = new ConcurrentSkipListMap<>();
+        appendLock = new Object();
+
+        Files.createDirectories(directory);
+        recover();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SegmentCompactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_PERIOD, COMPACTION_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private static String key(String fileID, int chunkNo) {
+        return fileID + "/" + chunkNo;
+    }
+
+    @Override
+    public boolean contains(String fileID, int chunkNo) {
+        return index.containsKey(key(fileID, chunkNo));
+    }
+
+    @Override
+    public long save(String fileID, int chunkNo, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        synchronized (appendLock) {
+            put(fileID, chunkNo, data, (int) crc.getValue());
+        }
+        return data.length;
+    }
+
+    @Override
+    public byte[] load(String fileID, int chunkNo) throws IOException {
+        String key = key(fileID, chunkNo);
+
+        // A compaction may move the chunk, and delete its segment, between finding and reading it
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = index.get(key);
+            if (location == null)
+                return null;
+
+            ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            try {
+                location.segment.read(buffer, location.dataOffset);
+                return buffer.array();
+            } catch (ClosedChannelException e) {
+                Log.log("Chunk " + key + " moved while being read");
+            }
+        }
+
+        throw new IOException("Couldn't read chunk " + key);
+    }
+
+    /**
+     * The mapping stays valid if the segment is compacted meanwhile, as records are never modified in place.
+     */
+    @Override
+    public ByteBuffer map(String fileID, int chunkNo) throws IOException {
+        String key = key(fileID, chunkNo);
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = index.get(key);
+            if (location == null)
+                return null;
+
+            try {
+                return location.segment.map(location.dataOffset, location.length);
+            } catch (ClosedChannelException e) {
+                Log.log("Chunk " + key + " moved while being mapped");
+            }
+        }
+
+        throw new IOException("Couldn't map chunk " + key);
+    }
+
+    @Override
+    public long delete(String fileID, int chunkNo) throws IOException {
+        String key = key(fileID, chunkNo);
+
+        synchronized (appendLock) {
+            Location location = index.get(key);
+            if (location == null)
+                return -1;
+
+            append(header(DELETE, fileID, chunkNo, 0));
+            index.remove(key);
+            location.segment.liveBytes.addAndGet(-location.recordSize);
+            return location.length;
+        }
+    }
+
+    /**
+     * Segments are synced when sealed, so only the active one can hold unsynced chunks.
+     */
+    @Override
+    public void sync() throws IOException {
+        Segment segment = active;
+        try {
+            segment.channel.force(false);
+        } catch (ClosedChannelException e) {
+            segment.reopen(segment.channel).force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                segment.channel.force(false);
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Appends a PUT record and points the index at it. Must hold the appendLock.
+     */
+    private void put(String fileID, int chunkNo, byte[] data, int crc) throws IOException {
+        ByteBuffer header = header(PUT, fileID, chunkNo, data.length);
+        int headerSize = header.remaining();
+        ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES);
+        trailer.putInt(crc).flip();
+
+        int recordSize = headerSize + data.length + trailer.remaining();
+        long offset = append(header, ByteBuffer.wrap(data), trailer);
+
+        Location location = new Location(active, offset + headerSize, data.length, recordSize);
+        active.liveBytes.addAndGet(recordSize);
+
+        Location previous = index.put(key(fileID, chunkNo), location);
+        if (previous != null)
+            previous.segment.liveBytes.addAndGet(-previous.recordSize);
+    }
+
+    private static ByteBuffer header(byte type, String fileID, int chunkNo, int length) {
+        byte[] id = fileID.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(1 + Short.BYTES + id.length + 2 * Integer.BYTES);
+        header.put(type).putShort((short) id.length).put(id).putInt(chunkNo);
+        if (type == PUT)
+            header.putInt(length);
+
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new one if it's full. Must hold the appendLock.
+     *
+     * @return Offset of the record in the active segment
+     */
+    private long append(ByteBuffer... record) throws IOException {
+        long recordSize = 0;
+        for (ByteBuffer buffer : record)
+            recordSize += buffer.remaining();
+
+        if (active.size > 0 && active.size + recordSize > SEGMENT_SIZE) {
+            active.channel.force(false);
+            active = newSegment(active.id + 1);
+        }
+
+        FileChannel channel = active.channel;
+        long offset = active.size;
+        long written = 0;
+        while (written < recordSize) {
+            channel.position(offset + written);
+            written += channel.write(record);
+        }
+
+        active.size += recordSize;
+        return offset;
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, directory.resolve(SEGMENT_PREFIX + id));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index from the segments, oldest first.
+     * Only the last segment is checked for a torn record, as the others were flushed when sealed.
+     */
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX))
+                    ids.add(Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length())));
+            }
+        }
+        ids.sort(null);
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = newSegment(ids.get(i));
+            segment.size = scan(segment, i == ids.size() - 1, (type, fileID, chunkNo, dataOffset, length, recordSize) -> {
+                String key = key(fileID, chunkNo);
+                Location previous;
+                if (type == PUT) {
+                    segment.liveBytes.addAndGet(recordSize);
+                    previous = index.put(key, new Location(segment, dataOffset, length, recordSize));
+                } else {
+                    previous = index.remove(key);
+                }
+
+                if (previous != null)
+                    previous.segment.liveBytes.addAndGet(-previous.recordSize);
+            });
+
+            if (segment.size < segment.channel.size()) {
+                Log.logWarning("Truncating incomplete record at the end of " + segment.path.getFileName());
+                segment.channel.truncate(segment.size);
+            }
+        }
+
+        active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+        Log.log("Recovered " + index.size() + " chunks from " + segments.size() + " segments");
+    }
+
+    /**
+     * Visits every complete record of a segment.
+     *
+     * @return Offset after the last complete record
+     */
+    private static long scan(Segment segment, boolean verify, RecordVisitor visitor) throws IOException {
+        FileChannel channel = segment.channel;
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+        long position = 0;
+        byte[] data = new byte[0];
+        try {
+            int type;
+            while ((type = in.read()) != -1) {
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                String fileID = new String(id, StandardCharsets.UTF_8);
+                int chunkNo = in.readInt();
+                int headerSize = 1 + Short.BYTES + id.length + Integer.BYTES;
+
+                if (type == DELETE) {
+                    visitor.visit(DELETE, fileID, chunkNo, -1, 0, headerSize);
+                    position += headerSize;
+                    continue;
+                } else if (type != PUT) {
+                    Log.logError("Unknown record type in " + segment.path.getFileName());
+                    break;
+                }
+
+                int length = in.readInt();
+                headerSize += Integer.BYTES;
+                if (verify) {
+                    if (data.length < length)
+                        data = new byte[length];
+                    in.readFully(data, 0, length);
+                } else {
+                    skipFully(in, length);
+                }
+                int crc = in.readInt();
+
+                if (verify) {
+                    CRC32 expected = new CRC32();
+                    expected.update(data, 0, length);
+                    if ((int) expected.getValue() != crc)
+                        break;
+                }
+
+                int recordSize = headerSize + length + Integer.BYTES;
+                visitor.visit(PUT, fileID, chunkNo, position + headerSize, length, recordSize);
+                position += recordSize;
+            }
+        } catch (EOFException e) {
+            // Record cut short by a crash
+        }
+
+        return position;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    private void compact() {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.size == 0)
+                continue;
+            if (segment.liveBytes.get() > segment.size * (1 - COMPACTION_GARBAGE_RATIO))
+                continue;
+
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                Log.logError("Couldn't compact " + segment.path.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copies the segment's live chunks to the active segment, and deletes it.
+     * Tombstones are copied too while older segments, which may hold the chunks they delete, remain.
+     */
+    private void compact(Segment segment) throws IOException {
+        boolean olderSegments = segments.firstKey() < segment.id;
+
+        // Scan a private channel, so appends and reads of the segment aren't disturbed
+        Segment snapshot = new Segment(segment.id, segment.path);
+        try {
+            scan(snapshot, false, (type, fileID, chunkNo, dataOffset, length, recordSize) -> {
+                String key = key(fileID, chunkNo);
+
+                if (type == DELETE) {
+                    synchronized (appendLock) {
+                        if (olderSegments && !index.containsKey(key))
+                            append(header(DELETE, fileID, chunkNo, 0));
+                    }
+                    return;
+                }
+
+                Location location = index.get(key);
+                if (location == null || location.segment != segment || location.dataOffset != dataOffset)
+                    return;
+
+                ByteBuffer data = ByteBuffer.allocate(length + Integer.BYTES);
+                snapshot.read(data, dataOffset);
+                int crc = data.getInt(length);
+
+                synchronized (appendLock) {
+                    // Only copy it if it wasn't deleted or replaced meanwhile
+                    if (index.get(key) == location) {
+                        segment.liveBytes.addAndGet(-recordSize);
+                        put(fileID, chunkNo, Arrays.copyOf(data.array(), length), crc);
+                    }
+                }
+            });
+        } finally {
+            snapshot.channel.close();
+        }
+
+        synchronized (appendLock) {
+            // The copies must be on disk before the originals are gone
+            active.channel.force(false);
+            segments.remove(segment.id);
+        }
+
+        synchronized (segment) {
+            segment.deleted = true;
+            segment.channel.close();
+        }
+        Files.delete(segment.path);
+
+        Log.log("Compacted " + segment.path.getFileName());
+    }
+}
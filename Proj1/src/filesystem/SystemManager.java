@@ -4,14 +4,14 @@ import service.Peer;
 import utils.Log;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
 
-import static java.util.Arrays.copyOfRange;
-import static protocols.ProtocolSettings.MAX_CHUNK_SIZE;
 
 public class SystemManager {
 
@@ -24,19 +24,71 @@ public class SystemManager {
     public static final String FILES = "../files/";
     private static final String CHUNKS = "chunks/";
     private static final String RESTORES = "restores/";
+    private static final String SEGMENTS = "segments/";
+
+    /**
+     * Number of locks chunk writes and deletes are striped over, by fileID
+     */
+    private static final int NUM_WRITE_STRIPES = 64;
+
     private Peer parentPeer;
     private String rootPath;
 
     private Database database;
     private MemoryManager memoryManager;
-
-    public SystemManager(Peer parentPeer, long maxMemory) {
+    private ChunkStore chunkStore;
+    private ChunkCache chunkCache;
+    private ChunkWriter chunkWriter;
+
+    /**
+     * Serialize writes and deletes of chunks of the same file.
+     * Reads take no lock, as stores never expose a chunk half written.
+     */
+    private final Object[] writeStripes;
+
+    public SystemManager(Peer parentPeer, long maxMemory, ChunkStore.StoreType storeType, boolean deduplicate,
+                         long cacheCapacity, ChunkWriter.SyncPolicy syncPolicy) {
+        this("fileSystem/Peer" + parentPeer.getID() + "/", maxMemory, storeType, deduplicate, cacheCapacity, syncPolicy);
         this.parentPeer = parentPeer;
-        this.rootPath = "fileSystem/Peer" + parentPeer.getID() + "/";
+    }
+
+    /**
+     * @param rootPath Folder of the peer's file system, ending in a separator
+     */
+    SystemManager(String rootPath, long maxMemory, ChunkStore.StoreType storeType, boolean deduplicate,
+                  long cacheCapacity, ChunkWriter.SyncPolicy syncPolicy) {
+        this.rootPath = rootPath;
+
+        writeStripes = new Object[NUM_WRITE_STRIPES];
+        for (int i = 0; i < writeStripes.length; i++)
+            writeStripes[i] = new Object();
 
         initializePeerFileSystem();
+        initializeChunkStore(storeType, syncPolicy != ChunkWriter.SyncPolicy.NONE);
+        if (deduplicate)
+            chunkStore = new DedupChunkStore(chunkStore);
+        chunkCache = new ChunkCache(cacheCapacity);
+        chunkWriter = new ChunkWriter(this, chunkStore, syncPolicy);
 
         initializePermanentState(maxMemory);
+        chunkWriter.start();
+    }
+
+    /**
+     * @param synced True if stored chunks are synced to disk
+     */
+    private void initializeChunkStore(ChunkStore.StoreType storeType, boolean synced) {
+        if (storeType == ChunkStore.StoreType.SEGMENTS) {
+            try {
+                chunkStore = new SegmentChunkStore(rootPath + SEGMENTS);
+                Log.log("Using segment chunk store");
+                return;
+            } catch (IOException e) {
+                Log.logError("Couldn't open segment chunk store, using one file per chunk");
+            }
+        }
+
+        chunkStore = new FileChunkStore(getChunksPath(), synced);
     }
 
     private void initializePermanentState(long maxMemory) {
@@ -61,11 +113,7 @@ public class SystemManager {
     private void initializeDatabase() throws IOException, ClassNotFoundException {
         File db = new File(rootPath + "db");
 
-        if (db.exists()) {
-            this.database = (Database) Database.loadFromFile(db);
-        } else {
-            this.database = new Database(db.getAbsolutePath());
-        }
+        this.database = Database.load(db);
     }
 
     public static void createFolder(String name) {
@@ -76,49 +124,83 @@ public class SystemManager {
         }
     }
 
-    synchronized public SAVE_STATE saveFile(String fileName, String pathname, byte[] data) throws IOException {
-        if (memoryManager.getAvailableMemory() < data.length) {
-            Log.logWarning("Not enough space for saveFile!");
-            return SAVE_STATE.FAILURE;
+    /**
+     * Saves a chunk, reserving its space beforehand, along with that of any records the store keeps for it.
+     * The chunk is written by the ChunkWriter, batched with other chunks.
+     *
+     * @return Completed once the chunk is durable, as chosen by the ChunkWriter's SyncPolicy
+     */
+    public CompletableFuture<SAVE_STATE> saveChunk(String fileID, int chunkNo, byte[] data) {
+        long reserved = chunkStore.getMaxDiskBytes(data.length);
+        if (!memoryManager.reserveMemory(reserved)) {
+            Log.logWarning("Not enough space for saveChunk!");
+            return CompletableFuture.completedFuture(SAVE_STATE.FAILURE);
         }
-        String filePath = pathname + "/" + fileName;
 
-        if (Files.exists(Paths.get(filePath))) {
-            Log.logWarning("File already exists!");
-            return SAVE_STATE.EXISTS;
-        }
+        return chunkWriter.write(fileID, chunkNo, data, reserved);
+    }
+
+    /**
+     * Writes a chunk to the store, setting the write's state and the disk it took. Called by the ChunkWriter.
+     */
+    void storeChunk(ChunkWriter.PendingWrite write) {
+        synchronized (getWriteStripe(write.fileID)) {
+            if (chunkStore.contains(write.fileID, write.chunkNo)) {
+                Log.logWarning("File already exists!");
+                write.state = SAVE_STATE.EXISTS;
+                return;
+            }
 
-        OutputStream out = Files.newOutputStream(Paths.get(filePath));
-        out.write(data);
-        out.close();
+            try {
+                write.diskBytes = chunkStore.save(write.fileID, write.chunkNo, write.data);
+            } catch (IOException e) {
+                Log.logError("Couldn't save chunk: " + write.fileID + "/" + write.chunkNo);
+                write.state = SAVE_STATE.FAILURE;
+                return;
+            }
+            chunkCache.put(ChunkCache.key(write.fileID, write.chunkNo), ByteBuffer.wrap(write.data));
+        }
 
-        memoryManager.increaseUsedMemory(data.length);
-        return SAVE_STATE.SUCCESS;
+        write.state = SAVE_STATE.SUCCESS;
     }
 
-    synchronized public static byte[] loadFile(String pathname) {
-        InputStream inputStream;
-        long fileSize;
-        byte[] data;
-
-        try {
-            inputStream = Files.newInputStream(Paths.get(pathname));
-            fileSize = getFileSize(Paths.get(pathname));
-        } catch (IOException e) {
-            Log.logError("File not found!");
-            return null;
+    /**
+     * Removes a chunk that was written, but couldn't be made durable. Called by the ChunkWriter.
+     */
+    void unstoreChunk(String fileID, int chunkNo) {
+        synchronized (getWriteStripe(fileID)) {
+            try {
+                chunkStore.delete(fileID, chunkNo);
+            } catch (IOException e) {
+                Log.logError("Couldn't delete chunk: " + fileID + "/" + chunkNo);
+            } finally {
+                chunkCache.invalidate(ChunkCache.key(fileID, chunkNo));
+            }
         }
+    }
 
-        data = new byte[(int) fileSize];
+    /**
+     * Commits the space a write took, and releases the rest of what was reserved for it. Called by the ChunkWriter.
+     */
+    void finishWrite(ChunkWriter.PendingWrite write) {
+        long committed = write.state == SAVE_STATE.SUCCESS ? write.diskBytes : 0;
 
+        if (committed > 0)
+            memoryManager.commitMemory(committed);
+        if (committed < write.reserved)
+            memoryManager.releaseMemory(write.reserved - committed);
+    }
+
+    public static byte[] loadFile(String pathname) {
         try {
-            inputStream.read(data);
-            inputStream.close();
+            return Files.readAllBytes(Paths.get(pathname));
+        } catch (NoSuchFileException e) {
+            Log.logError("File not found!");
         } catch (IOException e) {
             Log.logError("Couldn't read data of a file!");
         }
 
-        return data;
+        return null;
     }
 
     public static long getFileSize(Path filepath) {
@@ -131,51 +213,52 @@ public class SystemManager {
         return attr.size();
     }
 
-    public static ArrayList<ChunkData> splitFileInChunks(byte[] fileData, String fileID, int replicationDegree) {
-        ArrayList<ChunkData> chunks = new ArrayList<>();
-
-        int numChunks = fileData.length / MAX_CHUNK_SIZE + 1;
-
-        for (int i = 0; i < numChunks; i++) {
-            byte[] chunkData;
-
-            if (i == numChunks - 1 && fileData.length % MAX_CHUNK_SIZE == 0) {
-                chunkData = new byte[0];
-            } else if (i == numChunks - 1) {
-                int leftOverBytes = fileData.length - (i * MAX_CHUNK_SIZE);
-                chunkData = copyOfRange(fileData, i * MAX_CHUNK_SIZE, i * MAX_CHUNK_SIZE + leftOverBytes);
-            } else {
-                chunkData = copyOfRange(fileData, i * MAX_CHUNK_SIZE, i * MAX_CHUNK_SIZE + MAX_CHUNK_SIZE);
-            }
-
-            ChunkData chunk = new ChunkData(fileID, i, replicationDegree, chunkData);
-            chunks.add(chunk);
+    public byte[] loadChunk(String fileID, int chunkNo) {
+        String key = ChunkCache.key(fileID, chunkNo);
+        ByteBuffer cached = chunkCache.get(key);
+        if (cached != null) {
+            byte[] data = new byte[cached.remaining()];
+            cached.get(data);
+            return data;
         }
 
-        return chunks;
-    }
-
-    public static byte[] fileMerge(ArrayList<ChunkData> chunks) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-        for (int i = 0; i < chunks.size(); i++) {
-            try {
-                outputStream.write(chunks.get(i).getData());
-            } catch (IOException e) {
-                Log.logError("Couldn't merge chunks of a file!");
-            }
+        try {
+            long invalidationCount = chunkCache.getInvalidationCount();
+            byte[] data = chunkStore.load(fileID, chunkNo);
+            if (data == null)
+                Log.logError("Chunk not found!");
+            else
+                chunkCache.admit(key, ByteBuffer.wrap(data.clone()), invalidationCount);
+            return data;
+        } catch (IOException e) {
+            Log.logError("Couldn't read data of a chunk!");
+            return null;
         }
-
-        return outputStream.toByteArray();
     }
 
-    public String getChunkPath(String fileID, int chunkNo) {
-        return getChunksPath() + fileID + "/" + chunkNo;
-    }
+    /**
+     * Loads a chunk for sending it, mapping it into memory instead of copying it.
+     *
+     * @return A read-only view of the chunk's data, or null if it couldn't be read
+     */
+    public ByteBuffer mapChunk(String fileID, int chunkNo) {
+        String key = ChunkCache.key(fileID, chunkNo);
+        ByteBuffer cached = chunkCache.get(key);
+        if (cached != null)
+            return cached;
 
-    public byte[] loadChunk(String fileID, int chunkNo) {
-        String chunkPath = getChunkPath(fileID, chunkNo);
-        return loadFile(chunkPath);
+        try {
+            long invalidationCount = chunkCache.getInvalidationCount();
+            ByteBuffer data = chunkStore.map(fileID, chunkNo);
+            if (data == null)
+                Log.logError("Chunk not found!");
+            else
+                chunkCache.admit(key, data, invalidationCount);
+            return data;
+        } catch (IOException e) {
+            Log.logError("Couldn't map data of a chunk!");
+            return null;
+        }
     }
 
     private void initializePeerFileSystem() {
@@ -199,20 +282,47 @@ public class SystemManager {
         return database;
     }
 
-    public void deleteChunk(String fileID, int chunkNo) {
-        String chunkPath = getChunkPath(fileID, chunkNo);
-        Path path = Paths.get(chunkPath);
-
-        long chunkSize = getFileSize(path);
+    /**
+     * @return True if deleting the chunk wouldn't free its data, as chunks of other files use the same content
+     */
+    public boolean isChunkShared(String fileID, int chunkNo) {
         try {
-            Files.delete(path);
+            return chunkStore.isShared(fileID, chunkNo);
         } catch (IOException e) {
-            Log.logError("Couldn't delete file: " + path);
+            Log.logError("Couldn't read references of chunk: " + fileID + "/" + chunkNo);
+            return false;
+        }
+    }
+
+    public void deleteChunk(String fileID, int chunkNo) {
+        synchronized (getWriteStripe(fileID)) {
+            try {
+                long freed = chunkStore.delete(fileID, chunkNo);
+                if (freed >= 0)
+                    memoryManager.reduceUsedMemory(freed);
+                else
+                    Log.logError("Couldn't find chunk to delete: " + fileID + "/" + chunkNo);
+            } catch (IOException e) {
+                Log.logError("Couldn't delete chunk: " + fileID + "/" + chunkNo);
+            } finally {
+                chunkCache.invalidate(ChunkCache.key(fileID, chunkNo));
+            }
         }
-        memoryManager.reduceUsedMemory(chunkSize);
         database.removeChunk(fileID, chunkNo);
     }
 
+    private Object getWriteStripe(String fileID) {
+        return writeStripes[Math.floorMod(fileID.hashCode(), writeStripes.length)];
+    }
+
+    public ChunkWriter getChunkWriter() {
+        return chunkWriter;
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
     public MemoryManager getMemoryManager() {
         return memoryManager;
     }
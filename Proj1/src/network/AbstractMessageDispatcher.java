@@ -3,26 +3,51 @@ package network;
 import service.Peer;
 import utils.Log;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+
+import static network.Message.MessageType.CHUNK;
+import static network.Message.MessageType.PUTCHUNK;
 
 public abstract class AbstractMessageDispatcher implements Runnable {
     interface MessageHandler {
         void handle(Message msg);
     }
 
-    private BlockingQueue<Message> msgQueue;
+    public enum Priority {
+        /**
+         * Small protocol messages, dispatched ahead of any DATA message
+         */
+        CONTROL,
+        /**
+         * Messages carrying chunk bodies, whose queue is bounded
+         */
+        DATA
+    }
+
+    /**
+     * Maximum number of DATA messages waiting to be dispatched
+     */
+    public static final int DEFAULT_DATA_QUEUE_CAPACITY = 1024;
+
+    private PriorityMessageQueue msgQueue;
     private Map<Message.MessageType, MessageHandler> messageHandlers;
+    private Map<Message.MessageType, Priority> messagePriorities;
+    private QueueWaitStatistics waitStatistics;
 
     protected Peer parentPeer;
 
     AbstractMessageDispatcher(Peer parentPeer) {
         this.parentPeer = parentPeer;
 
-        msgQueue = new LinkedBlockingDeque<>();
+        waitStatistics = new QueueWaitStatistics();
+        msgQueue = newMessageQueue(DEFAULT_DATA_QUEUE_CAPACITY);
         messageHandlers = new HashMap<>();
+        messagePriorities = new EnumMap<>(Message.MessageType.class);
+
+        setMessagePriority(PUTCHUNK, Priority.DATA);
+        setMessagePriority(CHUNK, Priority.DATA);
 
         setupMessageHandlers();
     }
@@ -38,19 +63,48 @@ public abstract class AbstractMessageDispatcher implements Runnable {
         messageHandlers.remove(msgType);
     }
 
-    private void dispatchMessage(Message msg) {
+    protected void setMessagePriority(Message.MessageType msgType, Priority priority) {
+        messagePriorities.put(msgType, priority);
+    }
+
+    protected Priority getMessagePriority(Message.MessageType msgType) {
+        return messagePriorities.getOrDefault(msgType, Priority.CONTROL);
+    }
+
+    /**
+     * Creates a queue that records its messages' wait times in this dispatcher's statistics.
+     */
+    PriorityMessageQueue newMessageQueue(int dataCapacity) {
+        return new PriorityMessageQueue(dataCapacity, waitStatistics);
+    }
+
+    public QueueWaitStatistics getWaitStatistics() {
+        return waitStatistics;
+    }
+
+    /**
+     * Handles a message, then gives back its receive buffer.
+     * Handlers that use the body after returning must copy it, with getBody(), before they return.
+     */
+    protected void dispatchMessage(Message msg) {
         //Ignoring invalid messages
-        if (msg == null || msg.getSenderID() == parentPeer.getID()) {
+        if (msg == null)
             return;
-        }
 
-        Log.log("R: " + msg.toString());
-
-        MessageHandler handler = messageHandlers.get(msg.getType());
-        if (handler != null)
-            handler.handle(msg);
-        else
-            Log.logError("Received unregistered message");
+        try {
+            if (msg.getSenderID() == parentPeer.getID())
+                return;
+
+            Log.log("R: " + msg.toString());
+
+            MessageHandler handler = messageHandlers.get(msg.getType());
+            if (handler != null)
+                handler.handle(msg);
+            else
+                Log.logError("Received unregistered message");
+        } finally {
+            msg.releaseReceiveBuffer();
+        }
     }
 
     @Override
@@ -58,7 +112,7 @@ public abstract class AbstractMessageDispatcher implements Runnable {
         Message msg;
 
         while (true) {
-            try { // BlockingQueue.take() yields CPU until a message is available
+            try { // take() yields CPU until a message is available
                 msg = msgQueue.take();
                 dispatchMessage(msg);
             } catch (InterruptedException e) {
@@ -67,16 +121,40 @@ public abstract class AbstractMessageDispatcher implements Runnable {
         }
     }
 
-    public void pushMessage(byte[] data, int length) {
+    /**
+     * Parses the received data and queues the message for dispatching.
+     *
+     * @param release Gives data back to its pool, once the message's body has been handled
+     * @return True if the message keeps a view over data, in which case release is run
+     * once it's dispatched, and the caller must not reuse the buffer until then
+     */
+    public boolean pushMessage(byte[] data, int length, Runnable release) {
         Message msgParsed; // create and parse the message
         try {
             msgParsed = new Message(data, length);
         } catch (Exception e) {
             Log.logError(e.getMessage());
-            return;
+            return false;
         }
 
-        msgQueue.add(msgParsed);
+        boolean holdsBuffer = msgParsed.holdsReceiveBuffer();
+        if (holdsBuffer)
+            msgParsed.setBufferRelease(release);
+        enqueueMessage(msgParsed);
+        return holdsBuffer;
+    }
+
+    /**
+     * Queues a parsed message, to be dispatched by run().
+     * Blocks while the queue of DATA messages is full.
+     */
+    protected void enqueueMessage(Message msg) {
+        try {
+            msgQueue.put(msg, getMessagePriority(msg.getType()));
+        } catch (InterruptedException e) {
+            Log.logError("Interrupted while queueing message: " + msg);
+            Thread.currentThread().interrupt();
+        }
     }
 
 }
@@ -1,6 +1,5 @@
 package network;
 
-import filesystem.ChunkData;
 import filesystem.ChunkInfo;
 import filesystem.Database;
 import protocols.*;
@@ -9,7 +8,6 @@ import protocols.initiators.helpers.RemovedChunkHelper;
 import service.Peer;
 import utils.Log;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.*;
@@ -30,7 +28,7 @@ public class ConcreteMessageDispatcher extends AbstractMessageDispatcher {
         this.parentPeer = parentPeer;
         this.executor = Executors.newScheduledThreadPool(5);
 
-        this.backUpHandlers = new HashMap<>();
+        this.backUpHandlers = new ConcurrentHashMap<>();
         this.random = new Random();
     }
 
@@ -71,7 +69,7 @@ public class ConcreteMessageDispatcher extends AbstractMessageDispatcher {
         }
 
         if (!isMessageCompatibleWithEnhancement(ENHANCEMENT_RESTORE, msg)) {
-            peerData.addChunkToRestore(new ChunkData(msg.getFileID(), msg.getChunkNo(), msg.getBody()));
+            peerData.addChunkToRestore(msg.getFileID(), msg.getChunkNo(), msg.getBodyBuffer(), msg.getCodec());
         }
     }
 
@@ -91,6 +89,7 @@ public class ConcreteMessageDispatcher extends AbstractMessageDispatcher {
         }
         else if (! database.hasBackedUpFileById(msg.getFileID())) {
             // If file is not a local file, Mirror/Backup ChunkData
+            msg.getBody(); // Copied now, as the receive buffer goes back to its pool once this returns
             Backup backup = new Backup(parentPeer, msg);
             executor.execute(backup);
         } else {
@@ -135,7 +134,7 @@ public class ConcreteMessageDispatcher extends AbstractMessageDispatcher {
                     TimeUnit.MILLISECONDS
             );
 
-            backUpHandlers.putIfAbsent(msg.getFileID(), new HashMap<>());
+            backUpHandlers.putIfAbsent(msg.getFileID(), new ConcurrentHashMap<>());
             backUpHandlers.get(msg.getFileID()).put(msg.getChunkNo(), handler);
         }
     }
@@ -1,9 +1,11 @@
 package network;
 
-import utils.Log;
+import utils.ChunkCodec;
 import utils.Utils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import static utils.Utils.getIPV4Address;
 
@@ -21,6 +23,17 @@ public class Message implements Serializable {
         CHUNK
     }
 
+    private static final byte CR = 0x0D;
+    private static final byte LF = 0x0A;
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final byte[][] TYPE_NAMES = new byte[TYPES.length][];
+
+    static {
+        for (int i = 0; i < TYPES.length; i++)
+            TYPE_NAMES[i] = TYPES[i].name().getBytes(StandardCharsets.US_ASCII);
+    }
+
     private int numberArgs;
     //    Header
     private MessageType type;
@@ -29,21 +42,39 @@ public class Message implements Serializable {
     private String fileID;
     private int chunkNo;
     private int replicationDegree;
+    /**
+     * Encoding of the body of PUTCHUNKs and CHUNKs, named as an extra header field unless NONE
+     */
+    private ChunkCodec codec = ChunkCodec.NONE;
     //    Body
     private byte[] body;
+    /**
+     * View over the receive buffer, set for received messages,
+     * or over the mapped chunk, for CHUNKs sent from a mapped chunk.
+     * The body is only copied into a byte[] if getBody() is called.
+     */
+    private transient ByteBuffer bodyView;
+    /**
+     * Gives the receive buffer back to its pool, set for received messages with a body
+     */
+    private transient Runnable bufferRelease;
     private String mTCPHost;
     private int mTCPPort;
+    //    Serialized forms, built on first send
+    private transient byte[] headerBytes;
+    private transient byte[] wireBytes;
 
     //Constructor that handle received messages
     public Message(byte[] data, int length) throws Exception {
-        String header = extractHeader(data);
+        int headerEnd = findHeaderEnd(data, length);
 
-        if (header.equals("") || !parseHeader(header)) {
+        if (headerEnd < 0 || !parseHeader(data, headerEnd)) {
             throw new Exception("Invalid message...Ignoring it!");
         }
 
         if (type == MessageType.PUTCHUNK || type == MessageType.CHUNK) {
-            this.body = extractBody(data, header.length(), length);
+            int bodyStart = headerEnd + 4;
+            this.bodyView = ByteBuffer.wrap(data, bodyStart, length - bodyStart).slice();
         }
     }
 
@@ -63,8 +94,13 @@ public class Message implements Serializable {
 
         if (type == MessageType.PUTCHUNK) {
             replicationDegree = Integer.parseInt(args[4]);
+            if (args.length > 5)
+                codec = ChunkCodec.valueOf(args[5]);
         }
 
+        if (type == MessageType.CHUNK && args.length > 4)
+            codec = ChunkCodec.valueOf(args[4]);
+
         if (type == MessageType.ENH_GETCHUNK) {
             mTCPPort = Integer.parseInt(args[4]);
             mTCPHost = getIPV4Address();
@@ -77,105 +113,173 @@ public class Message implements Serializable {
         body = data;
     }
 
-    private String extractHeader(byte[] data) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(data);
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(stream));
-
-        String header = "";
+    //Constructor that handle send messages with a body that isn't copied, such as a mapped chunk
+    public Message(MessageType type, String[] args, ByteBuffer data) {
+        this(type, args);
+        bodyView = data;
+    }
 
-        try {
-            header = reader.readLine();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Finds the CRLFCRLF sequence that terminates the header.
+     *
+     * @return Index of the first CR of the terminator, or -1 if there is none
+     */
+    private static int findHeaderEnd(byte[] data, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (data[i] == CR && data[i + 1] == LF && data[i + 2] == CR && data[i + 3] == LF)
+                return i;
         }
-
-        return header;
+        return -1;
     }
 
-    private byte[] extractBody(byte[] data, int headerLength, int dataLength) {
-        int length = dataLength;
-        int readBytes = length - headerLength - 4;
-        ByteArrayInputStream message = new ByteArrayInputStream(data, headerLength + 4, readBytes);
-        byte[] bodyContent = new byte[readBytes];
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == CR || b == LF;
+    }
 
-        message.read(bodyContent, 0, readBytes);
+    /**
+     * Parses the header fields directly from the received bytes,
+     * without building intermediate Strings for the whole header.
+     */
+    private boolean parseHeader(byte[] data, int headerEnd) {
+        // Start and end offsets of each whitespace separated field
+        int[] starts = new int[7];
+        int[] ends = new int[7];
+        int numFields = 0;
+
+        int i = 0;
+        while (i < headerEnd) {
+            while (i < headerEnd && isWhitespace(data[i])) i++;
+            if (i == headerEnd) break;
+
+            if (numFields == starts.length) // More fields than any message type has
+                return false;
 
-        return bodyContent;
-    }
+            starts[numFields] = i;
+            while (i < headerEnd && !isWhitespace(data[i])) i++;
+            ends[numFields++] = i;
+        }
 
-    private boolean parseHeader(String header) {
+        if (numFields == 0)
+            return false;
 
-        String headerCleaned = header.trim().replaceAll("\\s+", " "); //More than one space between fields
-        String[] headerSplit = headerCleaned.split("\\s+"); //Split by space the header elements
+        type = parseType(data, starts[0], ends[0]);
+        if (type == null)
+            return false;
 
-        switch (headerSplit[0]) {
-            case "PUTCHUNK":
-                type = MessageType.PUTCHUNK;
+        switch (type) {
+            case PUTCHUNK:
+            case ENH_GETCHUNK:
                 numberArgs = 6;
                 break;
-            case "STORED":
-                type = MessageType.STORED;
-                numberArgs = 5;
-                break;
-            case "GETCHUNK":
-                type = MessageType.GETCHUNK;
-                numberArgs = 5;
-                break;
-            case "CHUNK":
-                type = MessageType.CHUNK;
+            case STORED:
+            case GETCHUNK:
+            case CHUNK:
+            case REMOVED:
                 numberArgs = 5;
                 break;
-            case "DELETE":
-                type = MessageType.DELETE;
-                numberArgs = 4;
-                break;
-            case "DELETED":
-                type = MessageType.DELETED;
+            case DELETE:
+            case DELETED:
                 numberArgs = 4;
                 break;
-            case "REMOVED":
-                type = MessageType.REMOVED;
-                numberArgs = 5;
-                break;
-            case "ENH_GETCHUNK":
-                type = MessageType.ENH_GETCHUNK;
-                numberArgs = 6;
-                break;
-            case "UP":
-                type = MessageType.UP;
+            case UP:
                 numberArgs = 3;
                 break;
-            default:
-                return false;
         }
 
-        if (headerSplit.length != numberArgs)
+        boolean encoded = (type == MessageType.PUTCHUNK || type == MessageType.CHUNK) && numFields == numberArgs + 1;
+        if (numFields != numberArgs && !encoded)
             return false;
 
-        version = headerSplit[1];
-        senderID = Integer.parseInt(headerSplit[2]);
+        if (encoded) {
+            codec = ChunkCodec.fromName(asciiString(data, starts[numberArgs], ends[numberArgs]));
+            if (codec == null)
+                return false;
+        }
+
+        try {
+            version = asciiString(data, starts[1], ends[1]);
+            senderID = parseInt(data, starts[2], ends[2]);
 
-        if (type == MessageType.UP)
-            return true;
+            if (type == MessageType.UP)
+                return true;
 
-        fileID = headerSplit[3];
+            fileID = asciiString(data, starts[3], ends[3]);
 
-        if (numberArgs > 4)
-            chunkNo = Integer.parseInt(headerSplit[4]);
+            if (numberArgs > 4)
+                chunkNo = parseInt(data, starts[4], ends[4]);
 
-        if (type == MessageType.PUTCHUNK)
-            replicationDegree = Integer.parseInt(headerSplit[5]);
+            if (type == MessageType.PUTCHUNK)
+                replicationDegree = parseInt(data, starts[5], ends[5]);
 
-        if (type == MessageType.ENH_GETCHUNK) {
-            String[] tcpAddress = headerSplit[5].split(":");
-            mTCPHost = tcpAddress[0];
-            mTCPPort = Integer.parseInt(tcpAddress[1]);
+            if (type == MessageType.ENH_GETCHUNK) {
+                int colon = indexOf(data, starts[5], ends[5], (byte) ':');
+                if (colon < 0)
+                    return false;
+                mTCPHost = asciiString(data, starts[5], colon);
+                mTCPPort = parseInt(data, colon + 1, ends[5]);
+            }
+        } catch (NumberFormatException e) {
+            return false;
         }
 
         return true;
     }
 
+    private static MessageType parseType(byte[] data, int start, int end) {
+        int length = end - start;
+
+        for (int t = 0; t < TYPES.length; t++) {
+            byte[] name = TYPE_NAMES[t];
+            if (name.length != length)
+                continue;
+
+            int j = 0;
+            while (j < length && data[start + j] == name[j]) j++;
+            if (j == length)
+                return TYPES[t];
+        }
+
+        return null;
+    }
+
+    /**
+     * Parses a decimal int, with an optional sign, as Integer.parseInt does.
+     *
+     * @throws NumberFormatException If the field isn't a number, or doesn't fit an int
+     */
+    private static int parseInt(byte[] data, int start, int end) {
+        boolean negative = start < end && data[start] == '-';
+        if (start < end && (data[start] == '-' || data[start] == '+'))
+            start++;
+        if (start >= end)
+            throw new NumberFormatException("Empty numeric field");
+
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Invalid numeric field");
+            value = value * 10 + digit;
+            if (value > limit)
+                throw new NumberFormatException("Numeric field out of range");
+        }
+
+        return (int) (negative ? -value : value);
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static String asciiString(byte[] data, int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.US_ASCII);
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -185,7 +289,12 @@ public class Message implements Serializable {
 
         switch (type) {
             case PUTCHUNK:
-                str = type + " " + version + " " + senderID + " " + fileID + " " + chunkNo + " " + replicationDegree + " " + Utils.CRLF + Utils.CRLF;
+                str = type + " " + version + " " + senderID + " " + fileID + " " + chunkNo + " " + replicationDegree + " " +
+                        getCodecField() + Utils.CRLF + Utils.CRLF;
+                break;
+            case CHUNK:
+                str = type + " " + version + " " + senderID + " " + fileID + " " + chunkNo + " " +
+                        getCodecField() + Utils.CRLF + Utils.CRLF;
                 break;
             case DELETE:
             case DELETED:
@@ -206,22 +315,44 @@ public class Message implements Serializable {
         return str;
     }
 
-    public byte[] getBytes() {
+    private String getCodecField() {
+        return codec != ChunkCodec.NONE ? codec + " " : "";
+    }
+
+    /**
+     * Getter for a read-only view of the serialized header.
+     * The header is serialized once and reused by every send of this message.
+     */
+    public ByteBuffer getHeaderBuffer() {
+        return ByteBuffer.wrap(getHeaderBytes()).asReadOnlyBuffer();
+    }
 
-        byte header[] = getHeaderAsString().getBytes();
+    private synchronized byte[] getHeaderBytes() {
+        if (headerBytes == null)
+            headerBytes = getHeaderAsString().getBytes(StandardCharsets.US_ASCII);
+        return headerBytes;
+    }
 
-        if (body != null) {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(header);
-                outputStream.write(body);
-            } catch (IOException e) {
-                Log.logError("Couldn't create message byte[] to send!");
-            }
-            return outputStream.toByteArray();
+    /**
+     * Getter for the message's wire form, header followed by body.
+     * It is built once and shared by retries and delayed sends, so it must not be modified.
+     */
+    public synchronized byte[] getBytes() {
+        if (wireBytes != null)
+            return wireBytes;
+
+        byte[] header = getHeaderBytes();
+        ByteBuffer bodyBuffer = getBodyBuffer();
+
+        if (bodyBuffer == null) {
+            wireBytes = header;
+        } else {
+            wireBytes = new byte[header.length + bodyBuffer.remaining()];
+            System.arraycopy(header, 0, wireBytes, 0, header.length);
+            bodyBuffer.get(wireBytes, header.length, bodyBuffer.remaining());
+        }
 
-        } else
-            return header;
+        return wireBytes;
     }
 
     public String getVersion() {
@@ -240,21 +371,81 @@ public class Message implements Serializable {
         return chunkNo;
     }
 
+    /**
+     * @return Encoding of the body, of PUTCHUNKs and CHUNKs
+     */
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+
     public int getReplicationDegree() {
         return replicationDegree;
     }
 
+    /**
+     * Getter for the message's body as a byte[].
+     * For received messages the body is copied out of the receive buffer on first call.
+     */
     public byte[] getBody() {
+        if (body == null && bodyView != null) {
+            body = new byte[bodyView.remaining()];
+            bodyView.duplicate().get(body);
+        }
         return body;
     }
 
+    /**
+     * Getter for a read-only view of the message's body, without copying it.
+     *
+     * @return The body, or null if the message has none
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (bodyView != null)
+            return bodyView.asReadOnlyBuffer();
+        return body != null ? ByteBuffer.wrap(body).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return True if the message still references the buffer it was parsed from.
+     * Only meaningful for received messages.
+     */
+    boolean holdsReceiveBuffer() {
+        return bodyView != null;
+    }
+
+    void setBufferRelease(Runnable bufferRelease) {
+        this.bufferRelease = bufferRelease;
+    }
+
+    /**
+     * Gives the buffer a received message was parsed from back to its pool.
+     * Afterwards the body is only available if getBody() already copied it.
+     */
+    void releaseReceiveBuffer() {
+        Runnable release = bufferRelease;
+        if (release == null)
+            return;
+
+        bufferRelease = null;
+        bodyView = null;
+        release.run();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getBody(); // The body view over the receive buffer isn't serializable
+        out.defaultWriteObject();
+    }
+
     @Override
     public String toString() {
         String str;
 
         switch (type) {
             case PUTCHUNK:
+            case CHUNK:
                 str = type + " " + version + " " + senderID + " " + fileID + " " + chunkNo;
+                if (codec != ChunkCodec.NONE)
+                    str += " " + codec;
                 break;
             case DELETE:
             case DELETED:
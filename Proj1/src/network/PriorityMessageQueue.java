@@ -0,0 +1,123 @@
+package network;
+
+import network.AbstractMessageDispatcher.Priority;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Queue of messages waiting to be dispatched.
+ * Control messages are taken ahead of data messages, and only data messages are bounded,
+ * blocking the producer when full.
+ * <p>
+ * A control message never overtakes a data message about the same chunk, e.g. a STORED the PUTCHUNK
+ * it follows: it waits behind the last data message queued for its chunk, and is taken right after it.
+ */
+class PriorityMessageQueue {
+
+    private static class QueuedMessage {
+        private final Message msg;
+        private final long enqueueTime;
+        /**
+         * Control messages about the same chunk, queued after this data message
+         */
+        private List<QueuedMessage> followers;
+
+        QueuedMessage(Message msg) {
+            this.msg = msg;
+            this.enqueueTime = System.nanoTime();
+        }
+    }
+
+    private final Queue<QueuedMessage> controlQueue;
+    private final Queue<QueuedMessage> dataQueue;
+    /**
+     * Last data message queued about each chunk, by chunkKey()
+     */
+    private final Map<String, QueuedMessage> lastData;
+    private final Object lock = new Object();
+
+    /**
+     * One permit per queued message, of either priority
+     */
+    private final Semaphore available;
+    /**
+     * One permit per free place for a data message
+     */
+    private final Semaphore dataSlots;
+
+    private final QueueWaitStatistics statistics;
+
+    PriorityMessageQueue(int dataCapacity, QueueWaitStatistics statistics) {
+        this.controlQueue = new ArrayDeque<>();
+        this.dataQueue = new ArrayDeque<>();
+        this.lastData = new HashMap<>();
+        this.available = new Semaphore(0);
+        this.dataSlots = new Semaphore(dataCapacity);
+        this.statistics = statistics;
+    }
+
+    void put(Message msg, Priority priority) throws InterruptedException {
+        QueuedMessage queued = new QueuedMessage(msg);
+        String key = chunkKey(msg);
+
+        if (priority == Priority.DATA) {
+            dataSlots.acquire();
+            synchronized (lock) {
+                dataQueue.add(queued);
+                if (key != null)
+                    lastData.put(key, queued);
+            }
+        } else {
+            synchronized (lock) {
+                QueuedMessage blocking = key != null ? lastData.get(key) : null;
+                if (blocking != null) {
+                    if (blocking.followers == null)
+                        blocking.followers = new ArrayList<>();
+                    blocking.followers.add(queued);
+                } else {
+                    controlQueue.add(queued);
+                }
+            }
+        }
+
+        available.release();
+    }
+
+    Message take() throws InterruptedException {
+        available.acquire();
+
+        QueuedMessage queued;
+        synchronized (lock) {
+            // Followers are only kept by data messages still queued, so one of the queues has a message
+            queued = controlQueue.poll();
+            if (queued == null) {
+                queued = dataQueue.poll();
+                dataSlots.release();
+
+                String key = chunkKey(queued.msg);
+                if (key != null && lastData.get(key) == queued)
+                    lastData.remove(key);
+                if (queued.followers != null)
+                    controlQueue.addAll(queued.followers);
+            }
+        }
+
+        statistics.record(queued.msg.getType(), System.nanoTime() - queued.enqueueTime);
+        return queued.msg;
+    }
+
+    /**
+     * @return Identifies the chunk the message is about, or null if it isn't about one
+     */
+    private static String chunkKey(Message msg) {
+        if (msg.getFileID() == null)
+            return null;
+        return msg.getFileID() + "/" + msg.getChunkNo();
+    }
+}
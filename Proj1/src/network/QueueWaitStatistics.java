@@ -0,0 +1,50 @@
+package network;
+
+import network.Message.MessageType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time messages of each type spent queued before being dispatched.
+ */
+public class QueueWaitStatistics {
+    private final AtomicLongArray dispatched;
+    private final AtomicLongArray totalWaitNanos;
+    private final AtomicLong[] maxWaitNanos;
+
+    QueueWaitStatistics() {
+        int numTypes = MessageType.values().length;
+
+        dispatched = new AtomicLongArray(numTypes);
+        totalWaitNanos = new AtomicLongArray(numTypes);
+        maxWaitNanos = new AtomicLong[numTypes];
+        for (int i = 0; i < numTypes; i++)
+            maxWaitNanos[i] = new AtomicLong();
+    }
+
+    void record(MessageType type, long waitNanos) {
+        int i = type.ordinal();
+
+        dispatched.incrementAndGet(i);
+        totalWaitNanos.addAndGet(i, waitNanos);
+        maxWaitNanos[i].accumulateAndGet(waitNanos, Math::max);
+    }
+
+    public long getDispatchedCount(MessageType type) {
+        return dispatched.get(type.ordinal());
+    }
+
+    public double getAverageWaitMillis(MessageType type) {
+        long count = getDispatchedCount(type);
+        if (count == 0)
+            return 0;
+
+        return totalWaitNanos.get(type.ordinal()) / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxWaitMillis(MessageType type) {
+        return maxWaitNanos[type.ordinal()].get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
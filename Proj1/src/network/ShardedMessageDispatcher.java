@@ -0,0 +1,74 @@
+package network;
+
+import service.Peer;
+import utils.Log;
+
+/**
+ * Message dispatcher that spreads messages over several worker lanes.
+ * <p>
+ * Messages are assigned to a lane by (fileID, chunkNo), so messages about the same chunk
+ * are still handled in order, while messages about unrelated chunks
+ * are handled in parallel. Messages without a fileID (UP) always go to the first lane.
+ */
+public class ShardedMessageDispatcher extends ConcreteMessageDispatcher {
+    public static final int DEFAULT_NUM_LANES = 4;
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    private PriorityMessageQueue[] lanes;
+
+    public ShardedMessageDispatcher(Peer parentPeer) {
+        this(parentPeer, DEFAULT_NUM_LANES, DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * @param numLanes     Number of worker lanes (threads)
+     * @param laneCapacity Maximum number of DATA messages waiting in each lane,
+     *                     after which pushMessage blocks the caller
+     */
+    public ShardedMessageDispatcher(Peer parentPeer, int numLanes, int laneCapacity) {
+        super(parentPeer);
+
+        lanes = new PriorityMessageQueue[numLanes];
+        for (int i = 0; i < numLanes; i++)
+            lanes[i] = newMessageQueue(laneCapacity);
+    }
+
+    private int getLane(Message msg) {
+        if (msg.getFileID() == null)
+            return 0;
+
+        int hash = msg.getFileID().hashCode() * 31 + msg.getChunkNo();
+        return Math.floorMod(hash, lanes.length);
+    }
+
+    @Override
+    protected void enqueueMessage(Message msg) {
+        try { // Blocks while the lane's DATA queue is full
+            lanes[getLane(msg)].put(msg, getMessagePriority(msg.getType()));
+        } catch (InterruptedException e) {
+            Log.logError("Interrupted while queueing message: " + msg);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < lanes.length; i++) {
+            PriorityMessageQueue lane = lanes[i];
+            new Thread(() -> runLane(lane), "dispatcher-lane-" + i).start();
+        }
+    }
+
+    private void runLane(PriorityMessageQueue lane) {
+        Message msg;
+
+        while (true) {
+            try { // take() yields CPU until a message is available
+                msg = lane.take();
+                dispatchMessage(msg);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import filesystem.ChunkInfo;
 import filesystem.SystemManager.SAVE_STATE;
 import network.Message;
 import service.Peer;
+import utils.ChunkCodec;
 import utils.Log;
 
 import java.io.IOException;
@@ -14,7 +15,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import static filesystem.SystemManager.createFolder;
 import static protocols.ProtocolSettings.*;
 
 public class Backup implements Runnable, PeerData.MessageObserver {
@@ -51,71 +51,58 @@ public class Backup implements Runnable, PeerData.MessageObserver {
             return;
         }
 
-        byte[] chunkData = request.getBody();
+        // Only peers that compress chunks themselves know how to serve compressed ones
+        if (request.getCodec() != ChunkCodec.NONE && !isPeerCompatibleWithEnhancement(ENHANCEMENT_COMPRESSION, parentPeer)) {
+            Log.log("Ignoring " + request.getCodec() + " PUTCHUNK");
+            return;
+        }
 
-        String chunkPath = parentPeer.getPath("chunks") + "/" + fileID;
-        createFolder(parentPeer.getPath("chunks") + "/" + fileID);
+        byte[] chunkData = request.getBody();
 
         if (isCompatibleWithEnhancement(ENHANCEMENT_BACKUP, request, parentPeer)) {
-            handleEnhancedRequest(fileID, chunkNo, replicationDegree, chunkData, chunkPath);
+            handleEnhancedRequest(fileID, chunkNo, replicationDegree, chunkData);
         } else {
-            handleStandardRequest(fileID, chunkNo, replicationDegree, chunkData, chunkPath);
+            handleStandardRequest(fileID, chunkNo, replicationDegree, chunkData);
         }
 
         Log.logWarning("Finished backup!");
     }
 
-    private void handleStandardRequest(String fileID, int chunkNo, int replicationDegree, byte[] chunkData, String chunkPath) {
-        boolean success = saveChunk(fileID, chunkNo, replicationDegree, chunkData, chunkPath);
-        if (success) {
-            sendDelayedSTORED(request);
-        }
+    private void handleStandardRequest(String fileID, int chunkNo, int replicationDegree, byte[] chunkData) {
+        saveChunk(fileID, chunkNo, replicationDegree, chunkData, () -> sendDelayedSTORED(request));
     }
 
-    private void handleEnhancedRequest(String fileID, int chunkNo, int replicationDegree, byte[] chunkData, String chunkPath) {
-        parentPeer.getPeerData().attachStoredObserver(this);
+    private void handleEnhancedRequest(String fileID, int chunkNo, int replicationDegree, byte[] chunkData) {
+        PeerData peerData = parentPeer.getPeerData();
+        peerData.attachStoredObserver(fileID, chunkNo, this);
 
         this.handler = scheduledExecutor.schedule(
                 () -> {
-                    boolean success = saveChunk(fileID, chunkNo, replicationDegree, chunkData, chunkPath);
-                    if (success) sendSTORED(request);
+                    peerData.detachStoredObserver(fileID, chunkNo, this);
+                    saveChunk(fileID, chunkNo, replicationDegree, chunkData, () -> sendSTORED(request));
                 },
                 this.random.nextInt(MAX_DELAY + 1),
                 TimeUnit.MILLISECONDS
         );
-
-        try {
-            this.handler.wait();
-            parentPeer.getPeerData().detachStoredObserver(this);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
     }
 
-    private boolean saveChunk(String fileID, int chunkNo, int replicationDegree, byte[] chunkData, String chunkPath) {
-        SAVE_STATE ret;
-        try {
-            ret = parentPeer.getSystemManager().saveFile(
-                    Integer.toString(chunkNo),
-                    chunkPath,
-                    chunkData
-            );
-        } catch (IOException e) {
-            Log.logError("Couldn't save the chunk!");
-            return false;
-        }
-
-        if (ret == SAVE_STATE.SUCCESS) {
-            parentPeer.getDatabase().addChunk(
-                    new ChunkInfo(fileID, chunkNo, replicationDegree, chunkData.length),
-                    parentPeer.getID()
-            );
-        } else { // Don't send STORED if chunk already existed
-            Log.logWarning("ChunkData Backup: " + ret);
-            return false;
-        }
-
-        return true;
+    /**
+     * Saves the chunk, and acknowledges it once it's durable.
+     *
+     * @param onStored Sends the STORED, if the chunk was saved
+     */
+    private void saveChunk(String fileID, int chunkNo, int replicationDegree, byte[] chunkData, Runnable onStored) {
+        parentPeer.getSystemManager().saveChunk(fileID, chunkNo, chunkData).thenAccept(ret -> {
+            if (ret == SAVE_STATE.SUCCESS) {
+                parentPeer.getDatabase().addChunk(
+                        new ChunkInfo(fileID, chunkNo, replicationDegree, chunkData.length, request.getCodec()),
+                        parentPeer.getID()
+                );
+                onStored.run();
+            } else { // Don't send STORED if chunk already existed
+                Log.logWarning("ChunkData Backup: " + ret);
+            }
+        });
     }
 
     private void sendSTORED(Message request) {
@@ -152,15 +139,15 @@ public class Backup implements Runnable, PeerData.MessageObserver {
 
     @Override
     public void update(Message msg) {
+        // Only STOREDs of this request's chunk are delivered
         if (this.handler == null)
             return;
-        if (msg.getChunkNo() != request.getChunkNo() || (!msg.getFileID().equals(request.getFileID())))
-            return;
 
         storedCount += 1;
         if (storedCount >= request.getReplicationDegree()) {
             // Cancel if chunk's perceived replication fulfills requirements
-            this.handler.cancel(true);
+            if (this.handler.cancel(false))
+                parentPeer.getPeerData().detachStoredObserver(request.getFileID(), request.getChunkNo(), this);
         }
     }
 }
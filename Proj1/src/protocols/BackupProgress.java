@@ -0,0 +1,84 @@
+package protocols;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of the backup of a local file.
+ */
+public class BackupProgress {
+    private final String pathname;
+    private final String fileID;
+    private final int numChunks;
+
+    private final AtomicInteger chunksAcked;
+    private final AtomicInteger chunksFailed;
+    private final AtomicInteger chunksUnchanged;
+    private final CountDownLatch done;
+
+    public BackupProgress(String pathname, String fileID, int numChunks) {
+        this.pathname = pathname;
+        this.fileID = fileID;
+        this.numChunks = numChunks;
+
+        this.chunksAcked = new AtomicInteger();
+        this.chunksFailed = new AtomicInteger();
+        this.chunksUnchanged = new AtomicInteger();
+        this.done = new CountDownLatch(numChunks);
+    }
+
+    /**
+     * @param replicated True if the chunk reached the desired replication degree
+     */
+    public void chunkFinished(boolean replicated) {
+        if (replicated)
+            chunksAcked.incrementAndGet();
+        else
+            chunksFailed.incrementAndGet();
+
+        done.countDown();
+    }
+
+    /**
+     * Counts a chunk that didn't need to be sent, as it didn't change since the file's last backup.
+     */
+    public void chunkUnchanged() {
+        chunksUnchanged.incrementAndGet();
+        done.countDown();
+    }
+
+    /**
+     * Blocks until every chunk has finished.
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    public String getPathname() {
+        return pathname;
+    }
+
+    public String getFileID() {
+        return fileID;
+    }
+
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    public int getChunksAcked() {
+        return chunksAcked.get();
+    }
+
+    public int getChunksFailed() {
+        return chunksFailed.get();
+    }
+
+    public int getChunksUnchanged() {
+        return chunksUnchanged.get();
+    }
+
+    public int getChunksPending() {
+        return numChunks - getChunksAcked() - getChunksFailed() - getChunksUnchanged();
+    }
+}
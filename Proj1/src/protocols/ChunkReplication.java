@@ -0,0 +1,57 @@
+package protocols;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Number of STORED messages received for each chunk of a local file being backed up,
+ * along with the listener to notify when each chunk reaches the desired replication degree.
+ * <p>
+ * Counting a STORED and notifying its listener is a single atomic increment, with no locks
+ * and no allocation, regardless of how many chunks are in flight.
+ */
+public class ChunkReplication {
+    private final int desiredReplication;
+    private final AtomicIntegerArray replication;
+    private final AtomicReferenceArray<Runnable> listeners;
+
+    ChunkReplication(int numChunks, int desiredReplication) {
+        this.desiredReplication = desiredReplication;
+        this.replication = new AtomicIntegerArray(numChunks);
+        this.listeners = new AtomicReferenceArray<>(numChunks);
+    }
+
+    /**
+     * Counts one more STORED for the given chunk, notifying its listener
+     * (once) if the desired replication degree was reached.
+     *
+     * @return The chunk's updated replication
+     */
+    int increment(int chunkNo) {
+        int count = replication.incrementAndGet(chunkNo);
+
+        if (count >= desiredReplication) {
+            Runnable listener = listeners.getAndSet(chunkNo, null);
+            if (listener != null)
+                listener.run();
+        }
+
+        return count;
+    }
+
+    /**
+     * Sets the listener run when the chunk reaches the desired replication degree.
+     * It runs on the thread dispatching the STORED message, so it must not block.
+     */
+    public void setListener(int chunkNo, Runnable listener) {
+        listeners.set(chunkNo, listener);
+    }
+
+    public int get(int chunkNo) {
+        return replication.get(chunkNo);
+    }
+
+    public boolean hasDesiredReplication(int chunkNo) {
+        return get(chunkNo) >= desiredReplication;
+    }
+}
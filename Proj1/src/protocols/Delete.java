@@ -8,8 +8,7 @@ import service.Peer;
 import utils.Log;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Map;
+import java.util.List;
 
 import static protocols.ProtocolSettings.ENHANCEMENT_DELETE;
 import static protocols.ProtocolSettings.isCompatibleWithEnhancement;
@@ -38,8 +37,7 @@ public class Delete implements Runnable {
             return;
         }
 
-        Map<Integer, ChunkInfo> chunkMap = database.removeChunksBackedUpByFileID(fileID);
-        Collection<ChunkInfo> chunks = chunkMap.values();
+        List<ChunkInfo> chunks = database.removeChunksBackedUpByFileID(fileID);
         for (ChunkInfo chunk : chunks) {
             parentPeer.getSystemManager().deleteChunk(chunk.getFileID(), chunk.getChunkNo());
         }
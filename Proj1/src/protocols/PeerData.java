@@ -1,15 +1,20 @@
 package protocols;
 
-import filesystem.ChunkData;
+import filesystem.RestoredFile;
 import network.Message;
+import utils.ChunkCodec;
 import utils.Log;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
 
 public class PeerData {
 
@@ -22,36 +27,84 @@ public class PeerData {
      * for Chunks of local files (from BackupInitiator).
      * Maps (fileID -> (ChunkNum -> NumStoresReceived))
      */
-    private ConcurrentMap<String, AtomicIntegerArray> chunkReplication;
+    private ConcurrentMap<String, ChunkReplication> chunkReplication;
     /**
-     * Contains the in-memory chunks restored.
-     * Maps (fileID -> (ChunkNum -> ChunkData))
+     * Contains the files being restored, to which received chunks are written.
+     * Maps (fileID -> RestoredFile)
      */
-    private ConcurrentMap<String, ConcurrentSkipListMap<Integer, ChunkData>> chunksRestored;
+    private ConcurrentMap<String, RestoredFile> filesRestoring;
+    /**
+     * Paths of the files being restored, claimed before they are created,
+     * so two restores never write to the same file.
+     */
+    private Set<String> restoresClaimed;
     /**
      * Collection of Observers of CHUNK messages.
      * Used for Restore protocol.
      */
     private Collection<MessageObserver> chunkObservers;
-    private Collection<MessageObserver> storedObservers;
+    /**
+     * Observers of STORED messages, indexed by the chunk they are interested in.
+     * Used for the enhanced Backup protocol.
+     * Maps (fileID -> (ChunkNum -> Observers))
+     */
+    private ConcurrentMap<String, ConcurrentMap<Integer, Collection<MessageObserver>>> storedObservers;
+    /**
+     * Progress of the backups of local files currently running.
+     * Maps (fileID -> BackupProgress)
+     */
+    private ConcurrentMap<String, BackupProgress> backupsInProgress;
+    /**
+     * Limits the number of chunks being backed up at once, over all backups.
+     */
+    private Semaphore putchunkWindow;
 
     public PeerData() {
         chunkReplication = new ConcurrentHashMap<>();
-        chunksRestored = new ConcurrentHashMap<>();
+        filesRestoring = new ConcurrentHashMap<>();
+        restoresClaimed = ConcurrentHashMap.newKeySet();
         chunkObservers = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        storedObservers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        storedObservers = new ConcurrentHashMap<>();
+        backupsInProgress = new ConcurrentHashMap<>();
+        putchunkWindow = new Semaphore(ProtocolSettings.MAX_INFLIGHT_PUTCHUNKS);
     }
 
-    public void attachStoredObserver(MessageObserver observer) {
-        this.storedObservers.add(observer);
+    /**
+     * Attaching and detaching change a file's observers in one atomic step, as detaching removes
+     * the file's map once it's empty, and an observer added to a removed map would never be notified.
+     */
+    public void attachStoredObserver(String fileID, int chunkNo, MessageObserver observer) {
+        storedObservers.compute(fileID, (k, chunks) -> {
+            if (chunks == null)
+                chunks = new ConcurrentHashMap<>();
+            chunks.computeIfAbsent(chunkNo, n -> new CopyOnWriteArraySet<>()).add(observer);
+            return chunks;
+        });
     }
 
-    public void detachStoredObserver(MessageObserver observer) {
-        this.storedObservers.remove(observer);
+    public void detachStoredObserver(String fileID, int chunkNo, MessageObserver observer) {
+        storedObservers.computeIfPresent(fileID, (k, chunks) -> {
+            chunks.computeIfPresent(chunkNo, (n, observers) -> {
+                observers.remove(observer);
+                return observers.isEmpty() ? null : observers;
+            });
+            return chunks.isEmpty() ? null : chunks;
+        });
     }
 
+    /**
+     * Notifies only the observers of the STORED message's chunk.
+     */
     public void notifyStoredObservers(Message msg) {
-        for (MessageObserver observer : storedObservers)
+        Map<Integer, Collection<MessageObserver>> fileObservers = storedObservers.get(msg.getFileID());
+        if (fileObservers == null)
+            return;
+
+        Collection<MessageObserver> observers = fileObservers.get(msg.getChunkNo());
+        if (observers == null)
+            return;
+
+        for (MessageObserver observer : observers)
             observer.update(msg);
     }
 
@@ -68,52 +121,82 @@ public class PeerData {
             observer.update(msg);
     }
 
-    public void setFlagRestored(boolean flag, String fileID) {
-        if (flag) {
-            chunksRestored.putIfAbsent(fileID, new ConcurrentSkipListMap<>());
-        } else {
-            chunksRestored.remove(fileID);
-        }
+    /**
+     * Claims the restore of a file, before the file is created.
+     *
+     * @return True if claimed, False if the file is already being restored
+     */
+    public boolean startRestore(String restorePath) {
+        return restoresClaimed.add(restorePath);
     }
 
-    public boolean getFlagRestored(String fileID) {
-        return chunksRestored.containsKey(fileID);
+    public void finishRestore(String restorePath) {
+        restoresClaimed.remove(restorePath);
     }
 
-    public void addChunkToRestore(ChunkData chunk) {
-        ChunkData ret = chunksRestored.get(chunk.getFileID()).putIfAbsent(chunk.getChunkNo(), chunk);
+    /**
+     * Writes the chunks received under fileID to restoredFile, until removed.
+     */
+    public void addFileToRestore(String fileID, RestoredFile restoredFile) {
+        filesRestoring.put(fileID, restoredFile);
+    }
 
-        if (ret != null) {
-            Log.logWarning("ChunkData already exists!");
-        } else {
-            Log.logWarning("Adding chunk to merge!");
-        }
+    public void removeFileToRestore(String fileID) {
+        filesRestoring.remove(fileID);
     }
 
-    public Integer getChunksRestoredSize(String fileID) {
-        return chunksRestored.get(fileID).size();
+    public boolean getFlagRestored(String fileID) {
+        return filesRestoring.containsKey(fileID);
     }
 
-    public ConcurrentMap<Integer, ChunkData> getChunksRestored(String fileID) {
-        return chunksRestored.get(fileID);
+    /**
+     * Writes a received chunk to the file being restored, decompressing it if needed.
+     */
+    public void addChunkToRestore(String fileID, int chunkNo, ByteBuffer data, ChunkCodec codec) {
+        RestoredFile restoredFile = filesRestoring.get(fileID);
+        if (restoredFile == null)
+            return;
+
+        if (codec != ChunkCodec.NONE) {
+            if (!restoredFile.isChunkOf(fileID, chunkNo) || restoredFile.hasChunk(chunkNo))
+                return;
+
+            try {
+                data = codec.decode(data, ProtocolSettings.MAX_CHUNK_SIZE);
+            } catch (IOException e) {
+                Log.logError("Couldn't decompress chunk " + chunkNo + " of " + fileID + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        if (restoredFile.writeChunk(fileID, chunkNo, data)) {
+            Log.logWarning("Restored chunk " + chunkNo + " of " + fileID);
+        } else {
+            Log.logWarning("ChunkData already exists!");
+        }
     }
 
     public void resetChunkReplication(String fileID) {
         chunkReplication.remove(fileID);
     }
 
-    public void startChunkReplication(String fileID, int numChunks) {
+    public void startChunkReplication(String fileID, int numChunks, int desiredReplication) {
         Log.log("Starting rep. log at key " + fileID);
-        chunkReplication.putIfAbsent(fileID, new AtomicIntegerArray(numChunks));
+        chunkReplication.putIfAbsent(fileID, new ChunkReplication(numChunks, desiredReplication));
     }
 
+    /**
+     * Counts a STORED for a chunk of a local file, waking the helper backing it up
+     * once the desired replication degree is reached.
+     */
     public Integer addChunkReplication(String fileID, int chunkNo) {
-        if (!chunkReplication.containsKey(fileID)) {
+        ChunkReplication fileReplication = chunkReplication.get(fileID);
+        if (fileReplication == null) {
             Log.logWarning("addChunkReplication: key not found: " + fileID);
             return null;
         }
 
-        int replication = chunkReplication.get(fileID).addAndGet(chunkNo, 1);
+        int replication = fileReplication.increment(chunkNo);
         Log.logWarning("Incrementing replication of " + fileID + "/" + chunkNo + " to " + replication);
         return replication;
     }
@@ -122,8 +205,24 @@ public class PeerData {
         return chunkReplication.get(fileID).get(chunkNo);
     }
 
-    public AtomicIntegerArray getChunkReplication(String fileID) {
+    public ChunkReplication getChunkReplication(String fileID) {
         return chunkReplication.get(fileID);
     }
 
+    public void startBackupProgress(BackupProgress progress) {
+        backupsInProgress.put(progress.getFileID(), progress);
+    }
+
+    public void resetBackupProgress(String fileID) {
+        backupsInProgress.remove(fileID);
+    }
+
+    public Collection<BackupProgress> getBackupsInProgress() {
+        return backupsInProgress.values();
+    }
+
+    public Semaphore getPutchunkWindow() {
+        return putchunkWindow;
+    }
+
 }
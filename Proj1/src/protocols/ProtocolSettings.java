@@ -2,6 +2,7 @@ package protocols;
 
 import network.Message;
 import service.Peer;
+import utils.ChunkCodec;
 
 public class ProtocolSettings {
 
@@ -12,10 +13,37 @@ public class ProtocolSettings {
 
     public static final int MAX_SYSTEM_MEMORY = (int) Math.pow(10, 6) * 8; // 8MB
 
+    /**
+     * Default capacity of the cache of chunks read and saved, in bytes.
+     */
+    public static final long DEFAULT_CHUNK_CACHE_SIZE = MAX_SYSTEM_MEMORY / 2; // 4MB
+
     public static final int PUTCHUNK_RETRIES = 5;
 
+    /**
+     * Maximum number of chunks being backed up at once by a peer, over all its backups.
+     */
+    public static final int MAX_INFLIGHT_PUTCHUNKS = 64;
+
     public static final int MAX_CHUNK_SIZE = 64000;
 
+    /**
+     * Number of GETCHUNKs a restore starts with outstanding, and the most it may have.
+     */
+    public static final int RESTORE_INITIAL_WINDOW = 8;
+
+    public static final int RESTORE_MAX_WINDOW = 128;
+
+    /**
+     * Time to wait for a CHUNK before requesting it again, in milliseconds.
+     */
+    public static final int GETCHUNK_TIMEOUT = 1000;
+
+    /**
+     * Time without receiving any CHUNK after which a restore gives up, in milliseconds.
+     */
+    public static final int RESTORE_STALL_TIMEOUT = 20000;
+
     public static final int MAX_REPLICATION_DEGREE = 9;
 
     public static final int MAX_NUM_CHUNKS = 1000000;
@@ -28,6 +56,13 @@ public class ProtocolSettings {
 
     public static final String ENHANCEMENT_DELETE = "1.3";
 
+    /**
+     * Chunks are compressed before being backed up, if that makes them smaller
+     */
+    public static final String ENHANCEMENT_COMPRESSION = "1.4";
+
+    public static final ChunkCodec COMPRESSION_CODEC = ChunkCodec.DEFLATE;
+
     public static final String ENHANCEMENT_ALL = "2.0";
 
     public static boolean isCompatibleWithEnhancement(String enhancedVersion, Message request, Peer peer) {
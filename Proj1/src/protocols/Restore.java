@@ -1,20 +1,25 @@
 package protocols;
 
 import channels.Channel;
+import filesystem.ChunkInfo;
 import filesystem.Database;
 import network.Message;
 import service.Peer;
+import utils.ChunkCodec;
 import utils.Log;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static protocols.ProtocolSettings.ENHANCEMENT_COMPRESSION;
 import static protocols.ProtocolSettings.ENHANCEMENT_RESTORE;
 import static protocols.ProtocolSettings.isCompatibleWithEnhancement;
+import static protocols.ProtocolSettings.isMessageCompatibleWithEnhancement;
 
 public class Restore implements Runnable, PeerData.MessageObserver {
 
@@ -22,7 +27,11 @@ public class Restore implements Runnable, PeerData.MessageObserver {
     private Message request;
     private Database database;
     private Random random;
-    private Future handler = null;
+    private volatile Future handler = null;
+    /**
+     * Encoding of the chunk being sent
+     */
+    private volatile ChunkCodec codec;
 
     public Restore(Peer parentPeer, Message request) {
         this.parentPeer = parentPeer;
@@ -45,49 +54,70 @@ public class Restore implements Runnable, PeerData.MessageObserver {
         int chunkNo = request.getChunkNo();
 
         //Access database to get the ChunkData
-        if (!database.hasChunk(fileID, chunkNo)) {
+        ChunkInfo chunkInfo = database.getChunkInfo(fileID, chunkNo);
+        if (chunkInfo == null) {
             Log.logError("ChunkData not found locally: " + fileID + "/" + chunkNo);
             return;
         }
-
-        byte[] chunkData = parentPeer.loadChunk(fileID, chunkNo);
+        database.markChunkRequested(fileID, chunkNo);
+        codec = chunkInfo.getCodec();
 
         if (isCompatibleWithEnhancement(ENHANCEMENT_RESTORE, request, parentPeer)) {
+            ByteBuffer chunkData = readChunk();
+            if (chunkData == null)
+                return;
+
             sendMessageToTCP(request, chunkData);
-            sendMessageToMDR(request, null);
+            sendMessageToMDR(request, false);
         } else {
-            sendMessageToMDR(request, chunkData);
+            sendMessageToMDR(request, true);
         }
 
         Log.logWarning("Finished restore!");
     }
 
-    private Message createMessage(Message request, byte[] chunkData) {
+    /**
+     * Maps the chunk, decompressing it if the requester can't.
+     * The codec is then the one the chunk is sent with.
+     *
+     * @return The chunk, or null if it couldn't be read
+     */
+    private ByteBuffer readChunk() {
+        ByteBuffer chunkData = parentPeer.mapChunk(request.getFileID(), request.getChunkNo());
+        if (chunkData == null || codec == ChunkCodec.NONE || isMessageCompatibleWithEnhancement(ENHANCEMENT_COMPRESSION, request))
+            return chunkData;
+
+        try {
+            chunkData = codec.decode(chunkData, ProtocolSettings.MAX_CHUNK_SIZE);
+            codec = ChunkCodec.NONE;
+            return chunkData;
+        } catch (IOException e) {
+            Log.logError("Couldn't decompress chunk " + request.getFileID() + "/" + request.getChunkNo() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Message createMessage(Message request, ByteBuffer chunkData) {
         String[] args = {
                 parentPeer.getVersion(),
                 Integer.toString(parentPeer.getID()),
                 request.getFileID(),
-                Integer.toString(request.getChunkNo())
+                Integer.toString(request.getChunkNo()),
+                codec.name()
         };
+        if (chunkData == null || codec == ChunkCodec.NONE)
+            args = Arrays.copyOf(args, args.length - 1);
 
         return new Message(Message.MessageType.CHUNK, args, chunkData);
     }
 
-    private void sendMessageToTCP(Message request, byte[] chunkData) {
+    private void sendMessageToTCP(Message request, ByteBuffer chunkData) {
         Message msgToSend = createMessage(request, chunkData);
 
-        String hostName = request.getTCPHost();
-        int portNumber = request.getTCPPort();
-
-        Socket serverSocket;
+        InetSocketAddress address = new InetSocketAddress(request.getTCPHost(), request.getTCPPort());
 
         try {
-            serverSocket = new Socket(hostName, portNumber);
-            Log.log("Connected to TCPServer");
-            ObjectOutputStream oos = new ObjectOutputStream(serverSocket.getOutputStream());
-            oos.writeObject(msgToSend);
-            oos.close();
-            serverSocket.close();
+            parentPeer.getTCPConnectionPool().send(address, msgToSend);
         } catch (IOException e) {
             Log.logError("Couldn't send CHUNK via TCP");
         }
@@ -95,24 +125,30 @@ public class Restore implements Runnable, PeerData.MessageObserver {
         Log.logWarning("S TCP: " + request.toString());
     }
 
-    private void sendMessageToMDR(Message request, byte[] chunkData) {
-        Message msgToSend = createMessage(request, chunkData);
-
-        parentPeer.getPeerData().attachChunkObserver(this);
-        this.handler = parentPeer.sendDelayedMessage(
-                Channel.ChannelType.MDR,
-                msgToSend,
-                random.nextInt(ProtocolSettings.MAX_DELAY),
-                TimeUnit.MILLISECONDS
-        );
-
-        try {
-            this.handler.wait();
-            parentPeer.getPeerData().detachChunkObserver(this);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
+    /**
+     * Sends the CHUNK after a random delay, unless another peer sends it first.
+     * The chunk is only mapped once the delay expired, so cancelled replies never read it.
+     */
+    private void sendMessageToMDR(Message request, boolean withBody) {
+        PeerData peerData = parentPeer.getPeerData();
+        peerData.attachChunkObserver(this);
+
+        this.handler = parentPeer.getExecutor().schedule(() -> {
+            peerData.detachChunkObserver(this);
+
+            ByteBuffer chunkData = null;
+            if (withBody) {
+                chunkData = readChunk();
+                if (chunkData == null)
+                    return;
+            }
+
+            try {
+                parentPeer.sendMessage(Channel.ChannelType.MDR, createMessage(request, chunkData));
+            } catch (IOException e) {
+                Log.logError("Couldn't send CHUNK to multicast channel!");
+            }
+        }, random.nextInt(ProtocolSettings.MAX_DELAY), TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -120,7 +156,9 @@ public class Restore implements Runnable, PeerData.MessageObserver {
         if (this.handler == null)
             return;
         if (msg.getFileID().equals(request.getFileID()) && msg.getChunkNo() == request.getChunkNo()) {
-            this.handler.cancel(true);
+            // Not interrupting, as that would close the channels the chunk is read and sent through
+            this.handler.cancel(false);
+            parentPeer.getPeerData().detachChunkObserver(this);
             Log.log("Cancelled CHUNK message, to avoid flooding host");
         }
     }
@@ -1,38 +1,66 @@
 package protocols.initiators;
 
+import channels.Channel;
 import filesystem.ChunkData;
 import filesystem.ChunkInfo;
+import filesystem.Database;
+import filesystem.FileChunker;
 import filesystem.FileInfo;
-import filesystem.SystemManager;
+import network.Message;
+import protocols.BackupProgress;
+import protocols.PeerData;
 import protocols.initiators.helpers.BackupChunkHelper;
+import protocols.initiators.helpers.ChunkPipeline;
 import service.Peer;
 import utils.Log;
 import utils.Utils;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
-import static filesystem.SystemManager.splitFileInChunks;
+import static protocols.ProtocolSettings.COMPRESSION_CODEC;
+import static protocols.ProtocolSettings.ENHANCEMENT_COMPRESSION;
 import static protocols.ProtocolSettings.MAX_NUM_CHUNKS;
 import static protocols.ProtocolSettings.MAX_REPLICATION_DEGREE;
+import static protocols.ProtocolSettings.isPeerCompatibleWithEnhancement;
 
+/**
+ * Backs up a local file, chunk by chunk.
+ * <p>
+ * Chunks are read, prepared and sent as a pipeline, so the first PUTCHUNK doesn't wait for the whole file.
+ * <p>
+ * An incremental backup keeps the hash of each chunk. Backing up the same path again then only sends
+ * the chunks whose content changed since its last backup, while the others stay stored
+ * under the fileID they were sent with. As the content is only known once every chunk is hashed,
+ * chunks are sent under a fileID of their own, and the file gets its fileID from its path and content
+ * once they're all sent.
+ * <p>
+ * Once every chunk sent is replicated, the fileIDs of earlier backups that no chunk uses any more are deleted.
+ * As DELETE removes all of a fileID's chunks, the chunks replaced under a fileID still partly in use are only
+ * deleted with the last of its chunks, so until then mirrors keep the old and new versions of changed chunks.
+ */
 public class BackupInitiator implements Runnable {
 
-    private byte[] fileData;
     private int replicationDegree;
     private String pathname;
     private Peer parentPeer;
     private String version;
+    private boolean incremental;
 
-    public BackupInitiator(String version, String pathname, int replicationDegree, Peer parentPeer) {
+    public BackupInitiator(String version, String pathname, int replicationDegree, boolean incremental, Peer parentPeer) {
         this.version = version;
         this.pathname = pathname;
         this.replicationDegree = replicationDegree;
+        this.incremental = incremental;
         this.parentPeer = parentPeer;
 
         Log.logWarning("Starting backupInitiator!");
@@ -40,36 +68,186 @@ public class BackupInitiator implements Runnable {
 
     @Override
     public void run() {
-        fileData = SystemManager.loadFile(pathname);
+        String fileID = incremental ? generateSendingFileID(pathname) : generateFileID(pathname);
 
-        String fileID = generateFileID(pathname);
-        ArrayList<ChunkData> chunks = splitFileInChunks(fileData, fileID, replicationDegree);
+        try (FileChunker chunker = new FileChunker(pathname, fileID, replicationDegree)) {
+            backup(chunker, fileID);
+        } catch (IOException | UncheckedIOException e) {
+            Log.logError("Backup: Couldn't read file: " + e.getMessage());
+        }
+    }
 
-        if (!validBackup(replicationDegree, chunks.size())) {
+    /**
+     * @param fileID The file's fileID, or for incremental backups the one its changed chunks are sent under
+     */
+    private void backup(FileChunker chunker, String fileID) {
+        if (!validBackup(replicationDegree, chunker.getNumChunks())) {
             return;
         }
+        int numChunks = (int) chunker.getNumChunks();
 
-        addRestorableFile(chunks, fileID);
-        parentPeer.getPeerData().startChunkReplication(fileID, chunks.size());
+        Database database = parentPeer.getDatabase();
+        FileInfo previous = incremental ? database.getFileInfoByPath(pathname) : null;
 
-        ArrayList<Thread> helperThreads = new ArrayList<>(chunks.size());
-        for (ChunkData chunk : chunks) {
-            Thread t = new Thread(new BackupChunkHelper(this, chunk));
-            helperThreads.add(t);
-            t.start();
+        // Chunks are assumed unchanged since the previous backup, until their hash says otherwise
+        ChunkInfo[] chunks = new ChunkInfo[numChunks];
+        byte[][] chunkHashes = incremental ? new byte[numChunks][] : null;
+        for (int i = 0; i < numChunks; i++) {
+            if (isReusable(previous, i)) {
+                chunks[i] = previous.getChunks()[i];
+                chunkHashes[i] = previous.getChunkHash(i);
+            } else {
+                chunks[i] = new ChunkInfo(fileID, i, replicationDegree, chunker.getChunkSize(i));
+            }
         }
 
-        try {
-            joinWithThreads(helperThreads);
-            parentPeer.getPeerData().resetChunkReplication(fileID);
+        PeerData peerData = parentPeer.getPeerData();
+        peerData.startChunkReplication(fileID, numChunks, replicationDegree);
+
+        BackupProgress progress = new BackupProgress(pathname, fileID, numChunks);
+        peerData.startBackupProgress(progress);
+
+        FileInfo registered = null;
+        boolean finished = false;
+        int chunksSent = 0;
+        List<Integer> chunksFailed = new ArrayList<>();
+        Semaphore putchunkWindow = peerData.getPutchunkWindow();
+
+        try (ChunkPipeline<PreparedChunk> pipeline = new ChunkPipeline<>(chunker, this::prepare)) {
+            pipeline.start();
+
+            for (int chunkNo = 0; chunkNo < numChunks; chunkNo++) {
+                PreparedChunk prepared;
+                try {
+                    prepared = pipeline.take();
+                } catch (IOException e) {
+                    Log.logError("Backup: Couldn't read chunk " + chunkNo + ": " + e.getMessage());
+                    // Chunks left unread keep what the previous backup stored, or fail
+                    for (; chunkNo < numChunks; chunkNo++) {
+                        if (chunks[chunkNo].getFileID().equals(fileID)) {
+                            synchronized (chunksFailed) {
+                                chunksFailed.add(chunkNo);
+                            }
+                        }
+                        progress.chunkFinished(false);
+                    }
+                    break;
+                }
+
+                if (chunkHashes != null) {
+                    if (!chunks[chunkNo].getFileID().equals(fileID) && Arrays.equals(prepared.hash, chunkHashes[chunkNo])) {
+                        progress.chunkUnchanged();
+                        continue;
+                    }
+                    chunks[chunkNo] = new ChunkInfo(fileID, chunkNo, replicationDegree, chunker.getChunkSize(chunkNo));
+                }
+
+                // Registered before the first PUTCHUNK is sent, so their STOREDs are counted
+                if (registered == null) {
+                    registered = new FileInfo(pathname, fileID, replicationDegree, chunks.clone(),
+                            chunkHashes != null ? chunkHashes.clone() : null);
+                    registerFile(previous, registered);
+                }
+                if (chunkHashes != null)
+                    chunkHashes[chunkNo] = prepared.hash;
+
+                putchunkWindow.acquire(); // Released when the chunk's helper finishes
+                boolean started = false;
+                try {
+                    int sentChunkNo = chunkNo;
+                    BackupChunkHelper helper = new BackupChunkHelper(this, prepared.chunk, prepared.unencoded, replicated -> {
+                        putchunkWindow.release();
+                        if (!replicated) {
+                            synchronized (chunksFailed) {
+                                chunksFailed.add(sentChunkNo);
+                            }
+                        }
+                        progress.chunkFinished(replicated);
+                    });
+                    parentPeer.getExecutor().execute(helper);
+                    started = true;
+                } finally {
+                    if (!started)
+                        putchunkWindow.release();
+                }
+                chunksSent++;
+            }
+
+            progress.await();
+            finished = true;
         } catch (InterruptedException e) {
-            Log.logError("Backup: Failed join with helper threads");
+            Log.logError("Backup: Interrupted while waiting for chunks");
+        } finally {
+            peerData.resetChunkReplication(fileID);
+            peerData.resetBackupProgress(fileID);
+        }
+
+        String contentFileID = chunkHashes != null ? generateContentFileID(pathname, chunkHashes) : null;
+        if (registered == null && progress.getChunksFailed() == 0 && previous != null
+                && previous.getFileID().equals(contentFileID)) {
+            Log.logWarning("Backup: " + pathname + " didn't change since its last backup");
+            return;
+        }
+
+        if (chunkHashes != null) {
+            synchronized (chunksFailed) {
+                // Forget the failed chunks' hashes, so the next backup sends them again
+                for (int chunkNo : chunksFailed)
+                    chunkHashes[chunkNo] = null;
+            }
+        }
+        boolean replicated;
+        synchronized (chunksFailed) {
+            replicated = finished && chunksFailed.isEmpty();
+        }
+
+        FileInfo fileInfo = new FileInfo(pathname, contentFileID != null ? contentFileID : fileID,
+                replicationDegree, chunks, chunkHashes);
+        // Chunks that failed may only be stored as the previous backup's, so its chunks are kept until a backup succeeds
+        if (previous != null && !replicated)
+            fileInfo.retainFileIDs(previous.getStoredFileIDs());
+        registerFile(registered != null ? registered : previous, fileInfo);
+
+        if (previous != null && replicated)
+            deleteUnreferenced(previous, fileInfo);
+
+        Log.logWarning("Finished BackupInitiator! " + progress.getChunksAcked() + "/" + chunksSent
+                + " chunks replicated, " + progress.getChunksUnchanged() + " unchanged");
+    }
+
+    /**
+     * Reads a chunk's hash, if backing up incrementally, and compresses it, if enhanced. Runs on the fork-join pool.
+     */
+    private PreparedChunk prepare(ChunkData chunk) {
+        byte[] hash = incremental ? Utils.sha256(chunk.getData()) : null;
+
+        if (isPeerCompatibleWithEnhancement(ENHANCEMENT_COMPRESSION, parentPeer)) {
+            byte[] compressed = COMPRESSION_CODEC.encode(chunk.getData());
+            if (compressed != null) {
+                return new PreparedChunk(new ChunkData(chunk.getFileID(), chunk.getChunkNo(),
+                        chunk.getReplicationDegree(), compressed, COMPRESSION_CODEC), chunk, hash);
+            }
         }
 
-        Log.logWarning("Finished BackupInitiator!");
+        return new PreparedChunk(chunk, null, hash);
     }
 
-    private boolean validBackup(int replicationDegree, int size) {
+    private static class PreparedChunk {
+        final ChunkData chunk;
+        /**
+         * The chunk as read, if it's sent compressed
+         */
+        final ChunkData unencoded;
+        final byte[] hash;
+
+        PreparedChunk(ChunkData chunk, ChunkData unencoded, byte[] hash) {
+            this.chunk = chunk;
+            this.unencoded = unencoded;
+            this.hash = hash;
+        }
+    }
+
+    private boolean validBackup(int replicationDegree, long size) {
         if (replicationDegree > MAX_REPLICATION_DEGREE) {
             Log.logError("Backup: Failed replication degree greater than 9");
             return false;
@@ -83,18 +261,47 @@ public class BackupInitiator implements Runnable {
         return true;
     }
 
-    private void addRestorableFile(ArrayList<ChunkData> chunks, String fileID) {
-        ChunkInfo[] chunkInfoArray = new ChunkInfo[chunks.size()];
-        for (int i = 0; i < chunks.size(); i++) {
-            ChunkData chunk = chunks.get(i);
-            chunkInfoArray[i] = new ChunkInfo(fileID, chunk.getChunkNo(), chunk.getReplicationDegree(), chunk.getSize());
-        }
-        parentPeer.getDatabase().addRestorableFile(new FileInfo(pathname, fileID, replicationDegree, chunkInfoArray));
+    /**
+     * @return True if the previous backup's chunk may be kept, if its content is the same
+     */
+    private boolean isReusable(FileInfo previous, int chunkNo) {
+        return previous != null && chunkNo < previous.getNumChunks()
+                && previous.getChunkHash(chunkNo) != null
+                && previous.getChunks()[chunkNo].getReplicationDegree() >= replicationDegree;
     }
 
-    private void joinWithThreads(List<Thread> threads) throws InterruptedException {
-        for (Thread t : threads) {
-            t.join();
+    /**
+     * Replaces the previous backup of the file, if any, with the given one.
+     */
+    private void registerFile(FileInfo previous, FileInfo fileInfo) {
+        Database database = parentPeer.getDatabase();
+        if (previous != null && !previous.getFileID().equals(fileInfo.getFileID()))
+            database.removeRestorableFile(previous);
+        database.addRestorableFile(fileInfo);
+    }
+
+    /**
+     * Deletes the chunks stored under fileIDs of the previous backup that the new one no longer uses,
+     * including those it retained.
+     */
+    private void deleteUnreferenced(FileInfo previous, FileInfo current) {
+        Set<String> inUse = current.getStoredFileIDs();
+
+        for (String fileID : previous.getStoredFileIDs()) {
+            if (inUse.contains(fileID))
+                continue;
+
+            parentPeer.getDatabase().addToFilesToDelete(fileID);
+            String[] args = {
+                    version,
+                    Integer.toString(parentPeer.getID()),
+                    fileID
+            };
+            try {
+                parentPeer.sendMessage(Channel.ChannelType.MC, new Message(Message.MessageType.DELETE, args));
+            } catch (IOException e) {
+                Log.logError("Couldn't send DELETE of the previous backup's chunks!");
+            }
         }
     }
 
@@ -102,6 +309,27 @@ public class BackupInitiator implements Runnable {
         return Utils.hash(generateUnhashedFileID(pathname));
     }
 
+    /**
+     * @return Identifies the chunks sent by this backup of the file, as its unchanged chunks keep the fileIDs of earlier ones
+     */
+    private String generateSendingFileID(String pathname) {
+        return Utils.hash(Paths.get(pathname).toAbsolutePath().toString()
+                + generateUnhashedFileID(pathname) + System.currentTimeMillis());
+    }
+
+    /**
+     * @return Identifies the file by its path and the hashes of all its chunks, or null if a chunk wasn't read
+     */
+    private String generateContentFileID(String pathname, byte[][] chunkHashes) {
+        StringBuilder content = new StringBuilder(Paths.get(pathname).toAbsolutePath().toString());
+        for (byte[] hash : chunkHashes) {
+            if (hash == null)
+                return null;
+            content.append(Utils.bytesToHex(hash));
+        }
+        return Utils.hash(content.toString());
+    }
+
     private String generateUnhashedFileID(String absPath) {
         BasicFileAttributes attr;
         try {
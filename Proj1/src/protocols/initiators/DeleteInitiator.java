@@ -34,10 +34,11 @@ public class DeleteInitiator implements Runnable {
             return;
         }
 
-        database.addToFilesToDelete(fileInfo.getFileID());
-
-        //Send Delete message to MC channel
-        sendMessageToMC(fileInfo);
+        //Send Delete message to MC channel, for every fileID the file's chunks are stored under
+        for (String fileID : fileInfo.getStoredFileIDs()) {
+            database.addToFilesToDelete(fileID);
+            sendMessageToMC(fileID);
+        }
 
         //Delete the file from fileSystem
         try {
@@ -51,8 +52,8 @@ public class DeleteInitiator implements Runnable {
         Log.logWarning("Finished deleteInitiator!");
     }
 
-    private void sendMessageToMC(FileInfo fileInfo) {
-        Message msg = makeDELETE(fileInfo);
+    private void sendMessageToMC(String fileID) {
+        Message msg = makeDELETE(fileID);
 
         try {
             parentPeer.sendMessage(Channel.ChannelType.MC, msg);
@@ -61,11 +62,11 @@ public class DeleteInitiator implements Runnable {
         }
     }
 
-    private Message makeDELETE(FileInfo fileInfo) {
+    private Message makeDELETE(String fileID) {
         String[] args = {
                 version,
                 Integer.toString(parentPeer.getID()),
-                fileInfo.getFileID()
+                fileID
         };
 
         return new Message(Message.MessageType.DELETE, args);
@@ -9,9 +9,15 @@ import service.Peer;
 import utils.Log;
 
 import java.io.IOException;
+import java.util.List;
 
 public class ReclaimInitiator implements Runnable {
 
+    /**
+     * Most chunks, in the reclaim policy's order, looked at for one whose deletion frees its data
+     */
+    private static final int MAX_CANDIDATES = 16;
+
     private Peer parentPeer;
     private SystemManager systemManager;
     private String version;
@@ -29,7 +35,11 @@ public class ReclaimInitiator implements Runnable {
         MemoryManager memoryManager = systemManager.getMemoryManager();
         while (memoryManager.getAvailableMemory() < 0) {
             Log.log("Available memory: " + memoryManager.getAvailableMemory());
-            ChunkInfo chunkInfo = systemManager.getDatabase().getChunkForRemoval();
+            ChunkInfo chunkInfo = chooseChunkForRemoval();
+            if (chunkInfo == null) {
+                Log.logWarning("No chunks left to reclaim");
+                break;
+            }
 
             byte[] chunkData = systemManager.loadChunk(chunkInfo.getFileID(), chunkInfo.getChunkNo());
             if (chunkData == null) { // Confirm chunk exists
@@ -45,6 +55,21 @@ public class ReclaimInitiator implements Runnable {
         Log.log("Finished reclaimInitiator!");
     }
 
+    /**
+     * Chunks whose content other chunks share free only their reference, so they're passed over when possible.
+     *
+     * @return The first chunk in the reclaim policy's order whose content isn't shared, or null if none is stored
+     */
+    private ChunkInfo chooseChunkForRemoval() {
+        List<ChunkInfo> candidates = systemManager.getDatabase().getChunksForRemoval(MAX_CANDIDATES);
+        for (ChunkInfo candidate : candidates) {
+            if (!systemManager.isChunkShared(candidate.getFileID(), candidate.getChunkNo()))
+                return candidate;
+        }
+
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
     private void sendREMOVED(ChunkInfo chunkInfo) {
         sendREMOVED(chunkInfo.getFileID(), chunkInfo.getChunkNo());
     }
@@ -1,18 +1,20 @@
 package protocols.initiators;
 
 import channels.Channel;
-import filesystem.ChunkData;
+import filesystem.ChunkInfo;
 import filesystem.FileInfo;
+import filesystem.RestoredFile;
 import network.Message;
-import protocols.initiators.helpers.TCPServer;
+import protocols.PeerData;
 import service.Peer;
 import utils.Log;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import static filesystem.SystemManager.fileMerge;
 import static protocols.ProtocolSettings.*;
 
 public class RestoreInitiator implements Runnable {
@@ -22,7 +24,6 @@ public class RestoreInitiator implements Runnable {
     private String version;
 
     private Peer parentPeer;
-    private TCPServer tcpServer;
 
     public RestoreInitiator(String version, String filePath, Peer parentPeer) {
         this.version = version;
@@ -40,57 +41,141 @@ public class RestoreInitiator implements Runnable {
             return;
         }
 
-        // Activate restore flag
-        parentPeer.setRestoring(true, fileInfo.getFileID());
+        String restorePath = parentPeer.getPath("restores") + fileInfo.getFileName();
 
-        //Start TCPServer if enhancement
-        if (isPeerCompatibleWithEnhancement(ENHANCEMENT_RESTORE, parentPeer)) {
-            initializeTCPServer();
+        // Claimed before creating the file, which would truncate the one another restore is writing to
+        PeerData peerData = parentPeer.getPeerData();
+        if (!peerData.startRestore(restorePath)) {
+            Log.logError("Already restoring " + fileInfo.getFileName());
+            return;
         }
 
-        // Send GETCHUNK to MC
-        for (int i = 0; i < fileInfo.getNumChunks(); i++) {
-            if (isPeerCompatibleWithEnhancement(ENHANCEMENT_RESTORE, parentPeer)) {
-                sendMessageToMC(Message.MessageType.ENH_GETCHUNK, i);
-            } else {
-                sendMessageToMC(Message.MessageType.GETCHUNK, i);
-            }
+        try {
+            restore(restorePath);
+        } finally {
+            peerData.finishRestore(restorePath);
         }
 
-        while (!parentPeer.hasRestoreFinished(filePath, fileInfo.getFileID())) {
-            Thread.yield();
+        Log.logWarning("Finished restoreInitiator!");
+    }
+
+    private void restore(String restorePath) {
+        RestoredFile restoredFile;
+        try {
+            restoredFile = new RestoredFile(restorePath, fileInfo, getFileSize());
+        } catch (IOException e) {
+            Log.logError("Failed creating restored file for " + fileInfo.getPath());
+            return;
         }
 
-        if (isPeerCompatibleWithEnhancement(ENHANCEMENT_RESTORE, parentPeer)) {
-            closeTCPServer();
+        // Activate restore flag, under every fileID the file's chunks are stored under
+        PeerData peerData = parentPeer.getPeerData();
+        for (String chunkFileID : fileInfo.getChunkFileIDs())
+            peerData.addFileToRestore(chunkFileID, restoredFile);
+
+        boolean complete = false;
+        try { // Chunks are written to the file as they arrive
+            complete = requestChunks(restoredFile);
+            if (complete)
+                Log.logWarning("Received all chunks");
+            else
+                Log.logWarning("Restore stalled with " + restoredFile.getNumChunksReceived() + "/" + fileInfo.getNumChunks() + " chunks");
+        } catch (InterruptedException e) {
+            Log.logWarning("Restore interrupted with " + restoredFile.getNumChunksReceived() + "/" + fileInfo.getNumChunks() + " chunks");
+        } finally {
+            // File no longer restoring
+            for (String chunkFileID : fileInfo.getChunkFileIDs())
+                peerData.removeFileToRestore(chunkFileID);
         }
 
-        Log.logWarning("Received all chunks");
-        ConcurrentMap<Integer, ChunkData> chunksRestored = parentPeer.getPeerData().getChunksRestored(fileInfo.getFileID());
-        String pathToSave = parentPeer.getPath("restores");
+        if (complete) {
+            try {
+                restoredFile.close();
+            } catch (IOException e) {
+                Log.logError("Failed saving file at " + fileInfo.getPath());
+            }
+        } else {
+            restoredFile.discard();
+        }
+    }
 
-        try {
-            parentPeer.getSystemManager().saveFile(
-                    fileInfo.getFileName(),
-                    pathToSave,
-                    fileMerge(new ArrayList<>(chunksRestored.values()))
-            );
-        } catch (IOException e) {
-            Log.logError("Failed saving file at " + fileInfo.getPath());
+    /**
+     * Sends GETCHUNKs through a sliding window, until every chunk is received or the restore stalls.
+     * <p>
+     * Chunks not received within GETCHUNK_TIMEOUT are requested again. The window starts at
+     * RESTORE_INITIAL_WINDOW, grows by one per chunk received until the first timeout, then
+     * by one per window of chunks received, and is halved whenever requests time out.
+     *
+     * @return True if every chunk was received, False if none arrived for RESTORE_STALL_TIMEOUT
+     */
+    private boolean requestChunks(RestoredFile restoredFile) throws InterruptedException {
+        int numChunks = fileInfo.getNumChunks();
+        Map<Integer, Long> outstanding = new HashMap<>(); // chunkNo -> time of last GETCHUNK
+        int nextChunkNo = 0;
+
+        double window = RESTORE_INITIAL_WINDOW;
+        boolean slowStart = true;
+
+        int chunksReceived = 0;
+        long lastProgress = System.currentTimeMillis();
+
+        while (!restoredFile.isComplete()) {
+            long now = System.currentTimeMillis();
+            boolean timedOut = false;
+
+            Iterator<Map.Entry<Integer, Long>> it = outstanding.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Long> request = it.next();
+
+                if (restoredFile.hasChunk(request.getKey())) {
+                    it.remove();
+                    window = Math.min(RESTORE_MAX_WINDOW, window + (slowStart ? 1 : 1 / window));
+                } else if (now - request.getValue() >= GETCHUNK_TIMEOUT) {
+                    sendGETCHUNK(request.getKey());
+                    request.setValue(now);
+                    timedOut = true;
+                }
+            }
+
+            if (timedOut) {
+                window = Math.max(1, window / 2);
+                slowStart = false;
+            }
+
+            if (restoredFile.getNumChunksReceived() > chunksReceived) {
+                chunksReceived = restoredFile.getNumChunksReceived();
+                lastProgress = now;
+            } else if (now - lastProgress >= RESTORE_STALL_TIMEOUT) {
+                return false;
+            }
+
+            while (outstanding.size() < (int) window && nextChunkNo < numChunks) {
+                if (!restoredFile.hasChunk(nextChunkNo)) {
+                    sendGETCHUNK(nextChunkNo);
+                    outstanding.put(nextChunkNo, now);
+                }
+                nextChunkNo++;
+            }
+
+            restoredFile.awaitChunk(GETCHUNK_TIMEOUT, TimeUnit.MILLISECONDS);
         }
 
-        // File no longer restoring
-        parentPeer.setRestoring(false, fileInfo.getFileID());
-        Log.logWarning("Finished restoreInitiator!");
+        return true;
     }
 
-    private void closeTCPServer() {
-        tcpServer.closeTCPServer();
+    private void sendGETCHUNK(int chunkNo) {
+        if (isPeerCompatibleWithEnhancement(ENHANCEMENT_RESTORE, parentPeer)) {
+            sendMessageToMC(Message.MessageType.ENH_GETCHUNK, chunkNo);
+        } else {
+            sendMessageToMC(Message.MessageType.GETCHUNK, chunkNo);
+        }
     }
 
-    private void initializeTCPServer() {
-        tcpServer = new TCPServer(parentPeer);
-        new Thread(tcpServer).start();
+    private long getFileSize() {
+        long size = 0;
+        for (ChunkInfo chunk : fileInfo.getChunks())
+            size += chunk.getSize();
+        return size;
     }
 
 
@@ -98,7 +183,7 @@ public class RestoreInitiator implements Runnable {
         String[] args = {
                 version,
                 Integer.toString(parentPeer.getID()),
-                fileInfo.getFileID(),
+                fileInfo.getChunks()[chunkNo].getFileID(),
                 Integer.toString(chunkNo),
                 Integer.toString(parentPeer.getID() + TCPSERVER_PORT)
         };
@@ -1,15 +1,23 @@
 package protocols.initiators;
 
+import channels.Channel;
+import filesystem.ChunkCache;
 import filesystem.ChunkInfo;
+import filesystem.ChunkWriter;
 import filesystem.Database;
 import filesystem.FileInfo;
 import filesystem.MemoryManager;
+import filesystem.PermanentStateClass;
+import filesystem.PersistenceStatistics;
+import network.Message;
+import network.QueueWaitStatistics;
+import protocols.BackupProgress;
 import service.Peer;
 import utils.Log;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
 
 public class RetrieveStateInitiator implements Runnable {
     private String version;
@@ -29,7 +37,7 @@ public class RetrieveStateInitiator implements Runnable {
         // Obtain info of the files from Database
         Collection<FileInfo> files = database.getFilesBackedUp();
         // Obtain info of the chunks from Database
-        ConcurrentMap<String, ConcurrentMap<Integer, ChunkInfo>> chunks = database.getChunksBackedUp();
+        Map<String, List<ChunkInfo>> chunks = database.getChunksBackedUp();
 
         // Save output string
         String out = "";
@@ -48,12 +56,21 @@ public class RetrieveStateInitiator implements Runnable {
             }
         }
 
+        // Backups of local files still running
+        out += "\n\nBackups in progress:\n";
+        for (BackupProgress backup : parentPeer.getPeerData().getBackupsInProgress()) {
+            out += "\nFile: " + backup.getPathname() +
+                    "\n Chunks acked: " + backup.getChunksAcked() + "/" + backup.getNumChunks() +
+                    "\n Chunks unchanged: " + backup.getChunksUnchanged() +
+                    "\n Chunks pending: " + backup.getChunksPending() +
+                    "\n Chunks failed: " + backup.getChunksFailed();
+        }
+
         //Loop to save the chunks
         out += "\n\nChunks:\n";
-        for (Map.Entry<String, ConcurrentMap<Integer, ChunkInfo>> outer : chunks.entrySet()) {
+        for (Map.Entry<String, List<ChunkInfo>> outer : chunks.entrySet()) {
             out += "\nFile: " + outer.getKey();
-            for (Map.Entry<Integer, ChunkInfo> inner : outer.getValue().entrySet()) {
-                ChunkInfo chunk = inner.getValue();
+            for (ChunkInfo chunk : outer.getValue()) {
                 out += "\n ChunkData: " +
                         "\n  ChunkID: " + chunk.getChunkNo() +
                         "\n  Size: " + chunk.getSize() / 1000 +
@@ -67,8 +84,64 @@ public class RetrieveStateInitiator implements Runnable {
                 "\n Available memory: " + mm.getAvailableMemory() +
                 "\n Used memory: " + mm.getUsedMemory();
 
+        // Chunk writes, from PUTCHUNK to durable
+        ChunkWriter writer = parentPeer.getSystemManager().getChunkWriter();
+        out += "\n\nChunk writer: " +
+                "\n Sync policy: " + writer.getSyncPolicy() +
+                "\n Chunks written: " + writer.getChunksWritten() +
+                "\n Batches: " + writer.getBatchCount() +
+                "\n Syncs: " + writer.getSyncCount() +
+                "\n Queue depth: " + writer.getQueueDepth() +
+                String.format("\n Latency: avg %.2f ms, max %.2f ms", writer.getAverageLatencyMillis(), writer.getMaxLatencyMillis());
+
+        // Chunks served from memory
+        ChunkCache cache = parentPeer.getSystemManager().getChunkCache();
+        out += "\n\nChunk cache: " +
+                String.format("\n Hit ratio: %.2f%%", cache.getHitRatio() * 100) +
+                "\n Hits: " + cache.getHitCount() +
+                "\n Misses: " + cache.getMissCount() +
+                "\n Evictions: " + cache.getEvictionCount() +
+                "\n Resident bytes: " + cache.getResidentBytes() + " / " + cache.getCapacity();
+
+        // Snapshots of the permanent state
+        out += "\n\nPersistence:" +
+                persistenceToString("Database", database) +
+                persistenceToString("Memory manager", mm);
+
+        // Receive pipeline of each channel
+        out += "\n\nChannels:";
+        for (Channel.ChannelType type : Channel.ChannelType.values()) {
+            Channel channel = parentPeer.getChannel(type);
+            out += "\n " + type + ":" +
+                    "\n  Received: " + channel.getReceivedCount() +
+                    "\n  Dropped: " + channel.getDroppedCount() +
+                    "\n  Pool exhausted: " + channel.getPoolExhaustedCount() +
+                    "\n  Queue depth: " + channel.getQueueDepth();
+        }
+
+        // Time spent by each message type waiting to be dispatched
+        QueueWaitStatistics waits = parentPeer.getMessageDispatcher().getWaitStatistics();
+        out += "\n\nDispatch queue wait:";
+        for (Message.MessageType type : Message.MessageType.values()) {
+            if (waits.getDispatchedCount(type) == 0)
+                continue;
+
+            out += "\n " + type + ": " + waits.getDispatchedCount(type) + " messages," +
+                    String.format(" avg %.2f ms, max %.2f ms", waits.getAverageWaitMillis(type), waits.getMaxWaitMillis(type));
+        }
+
         System.out.println(out); //TODO: Retrieve to TestApp
         Log.logWarning("Finished retrieveStateInitiator!");
     }
 
+    private static String persistenceToString(String name, PermanentStateClass state) {
+        PersistenceStatistics stats = state.getPersistenceStatistics();
+
+        return "\n " + name + ":" +
+                "\n  Snapshots: " + stats.getSnapshotCount() +
+                "\n  Skipped: " + stats.getSkippedCount() +
+                "\n  Bytes written: " + stats.getBytesWritten() +
+                String.format("\n  Duration: avg %.2f ms, max %.2f ms", stats.getAverageDurationMillis(), stats.getMaxDurationMillis());
+    }
+
 }
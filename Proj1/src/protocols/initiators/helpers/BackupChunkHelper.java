@@ -3,26 +3,67 @@ package protocols.initiators.helpers;
 import channels.Channel;
 import filesystem.ChunkData;
 import network.Message;
+import protocols.ChunkReplication;
 import protocols.ProtocolSettings;
 import protocols.initiators.BackupInitiator;
 import service.Peer;
+import utils.ChunkCodec;
 import utils.Log;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends a chunk's PUTCHUNK until it reaches the desired replication degree.
+ * <p>
+ * Each attempt is a task on the peer's scheduled executor, which schedules the next one
+ * after the back-off time, so no thread is held while waiting for STORED messages.
+ * <p>
+ * An encoded chunk that doesn't reach it after PUTCHUNK_RETRIES attempts is sent again unencoded,
+ * for as many attempts, as peers without the compression enhancement ignore encoded PUTCHUNKs.
+ */
 public class BackupChunkHelper implements Runnable {
 
+    public interface CompletionListener {
+        /**
+         * @param replicated True if the desired replication degree was reached,
+         *                   False if the helper gave up after PUTCHUNK_RETRIES attempts
+         */
+        void onFinished(boolean replicated);
+    }
+
     private final String protocolVersion;
     private Peer parentPeer;
     private ChunkData chunk;
-    private AtomicIntegerArray chunkReplication;
-
-    public BackupChunkHelper(BackupInitiator backupInitiator, ChunkData chunk) {
+    /**
+     * The chunk before it was encoded, or null if it's sent as it is
+     */
+    private ChunkData unencoded;
+    private ChunkReplication chunkReplication;
+    private CompletionListener listener;
+
+    private Message msg;
+    private int attempts = 0;
+    private int waitTime = 1000; // wait time, in milliseconds
+    private volatile Future nextAttempt;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * @param unencoded The chunk before it was encoded, sent if the encoded chunk isn't replicated, or null
+     */
+    public BackupChunkHelper(BackupInitiator backupInitiator, ChunkData chunk, ChunkData unencoded, CompletionListener listener) {
         this.chunk = chunk;
+        this.unencoded = unencoded;
         this.parentPeer = backupInitiator.getParentPeer();
         this.protocolVersion = backupInitiator.getProtocolVersion();
         this.chunkReplication = parentPeer.getPeerData().getChunkReplication(chunk.getFileID());
+        this.listener = listener;
+
+        // Finish as soon as enough STOREDs arrive, instead of at the next attempt
+        this.chunkReplication.setListener(chunk.getChunkNo(), () -> finish(true));
     }
 
     BackupChunkHelper(Peer parentPeer, ChunkData chunk) {
@@ -30,42 +71,69 @@ public class BackupChunkHelper implements Runnable {
         this.parentPeer = parentPeer;
         this.protocolVersion = parentPeer.getVersion();
         this.chunkReplication = null;
+        this.listener = null;
     }
 
     @Override
     public void run() {
+        msg = generatePutChunkMsg(chunk, protocolVersion);
+        attempt();
+    }
 
-        int waitTime = 1000; // wait time, in milliseconds
-        Message msg = generatePutChunkMsg(chunk, protocolVersion);
+    private void attempt() {
+        if (finished.get())
+            return;
 
-        for (int i = 0; i < ProtocolSettings.PUTCHUNK_RETRIES; i++) {
-            if (isDesiredReplicationDegree()) {
-                Log.log("Achieved desired replication at i=" + i);
-                break;
-            }
+        if (isDesiredReplicationDegree()) {
+            Log.log("Achieved desired replication at i=" + attempts);
+            finish(true);
+            return;
+        }
 
-            try {
-                parentPeer.sendMessage(Channel.ChannelType.MDB, msg);
-            } catch (IOException e) {
-                Log.logError("Couldn't send message to multicast channel!");
-            }
+        if (attempts == ProtocolSettings.PUTCHUNK_RETRIES && unencoded != null) {
+            Log.logWarning("Sending chunk " + chunk.getChunkNo() + " unencoded, after " + attempts + " " + chunk.getCodec() + " PUTCHUNKs");
+            chunk = unencoded;
+            unencoded = null;
+            msg = generatePutChunkMsg(chunk, protocolVersion);
+            attempts = 0;
+            waitTime = 1000;
+        }
 
-            sleep(waitTime);
-            waitTime *= 2;
+        if (attempts == ProtocolSettings.PUTCHUNK_RETRIES) {
+            Log.logWarning("Gave up on PUTCHUNK of chunk " + chunk.getChunkNo());
+            finish(false);
+            return;
+        }
+
+        try {
+            parentPeer.sendMessage(Channel.ChannelType.MDB, msg);
+        } catch (IOException e) {
+            Log.logError("Couldn't send message to multicast channel!");
         }
+
+        attempts++;
+        nextAttempt = parentPeer.getExecutor().schedule(this::attempt, waitTime, TimeUnit.MILLISECONDS);
+        waitTime *= 2;
     }
 
-    protected boolean isDesiredReplicationDegree() {
-        Log.log("Current perceived replication of " + chunk.getChunkNo() + ": " + chunkReplication.get(chunk.getChunkNo()));
-        return chunkReplication != null && chunkReplication.get(chunk.getChunkNo()) >= chunk.getReplicationDegree();
+    private void finish(boolean replicated) {
+        if (!finished.compareAndSet(false, true))
+            return;
+
+        Future pending = nextAttempt;
+        if (pending != null)
+            pending.cancel(false);
+
+        if (listener != null)
+            listener.onFinished(replicated);
     }
 
-    private void sleep(int waitTime) {
-        try {
-            Thread.sleep(waitTime);
-        } catch (InterruptedException e) {
-            Log.logError(e.getMessage());
-        }
+    protected boolean isDesiredReplicationDegree() {
+        if (chunkReplication == null)
+            return false;
+
+        Log.log("Current perceived replication of " + chunk.getChunkNo() + ": " + chunkReplication.get(chunk.getChunkNo()));
+        return chunkReplication.hasDesiredReplication(chunk.getChunkNo());
     }
 
     private Message generatePutChunkMsg(ChunkData chunk, String protocolVersion) {
@@ -74,8 +142,11 @@ public class BackupChunkHelper implements Runnable {
                 Integer.toString(parentPeer.getID()),
                 chunk.getFileID(),
                 Integer.toString(chunk.getChunkNo()),
-                Integer.toString(chunk.getReplicationDegree())
+                Integer.toString(chunk.getReplicationDegree()),
+                chunk.getCodec().name()
         };
+        if (chunk.getCodec() == ChunkCodec.NONE)
+            args = Arrays.copyOf(args, args.length - 1);
 
         return new Message(Message.MessageType.PUTCHUNK, args, chunk.getData());
     }
@@ -0,0 +1,93 @@
+package protocols.initiators.helpers;
+
+import filesystem.ChunkData;
+import filesystem.FileChunker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Prepares a file's chunks for backup in stages, so the first chunks can be sent while the rest are still being read.
+ * <p>
+ * A reader thread reads the chunks in order, and hands each one to the fork-join pool to be transformed
+ * (hashed, compressed, ...). Transformed chunks are taken in order, through a bounded queue,
+ * which stops the reader once CAPACITY chunks are waiting to be sent.
+ *
+ * @param <T> Type of the transformed chunks
+ */
+public class ChunkPipeline<T> implements Runnable, Closeable {
+    /**
+     * Most chunks read but not yet taken
+     */
+    private static final int CAPACITY = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+
+    private final FileChunker chunker;
+    private final Function<ChunkData, T> transform;
+    private final BlockingQueue<CompletableFuture<T>> prepared;
+    private Thread reader;
+
+    public ChunkPipeline(FileChunker chunker, Function<ChunkData, T> transform) {
+        this.chunker = chunker;
+        this.transform = transform;
+        this.prepared = new ArrayBlockingQueue<>(CAPACITY);
+    }
+
+    public void start() {
+        reader = new Thread(this, "ChunkReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (chunker.hasNext()) {
+                ChunkData chunk;
+                try {
+                    chunk = chunker.next();
+                } catch (RuntimeException e) { // Handed to take(), which would otherwise wait forever
+                    CompletableFuture<T> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    prepared.put(failed);
+                    return;
+                }
+
+                prepared.put(CompletableFuture.supplyAsync(() -> transform.apply(chunk), ForkJoinPool.commonPool()));
+            }
+        } catch (InterruptedException e) {
+            // Closed before every chunk was taken
+        }
+    }
+
+    /**
+     * Blocks until the next chunk, in order, is transformed.
+     *
+     * @throws IOException If the chunk couldn't be read or transformed
+     */
+    public T take() throws IOException, InterruptedException {
+        try {
+            return prepared.take().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the reader, if it's still running.
+     */
+    @Override
+    public void close() {
+        if (reader != null)
+            reader.interrupt();
+    }
+}
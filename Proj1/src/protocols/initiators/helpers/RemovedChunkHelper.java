@@ -2,19 +2,37 @@ package protocols.initiators.helpers;
 
 import filesystem.ChunkData;
 import filesystem.ChunkInfo;
+import filesystem.Database;
 import service.Peer;
 
+/**
+ * Backs up again a chunk whose perceived replication dropped below its desired degree after a REMOVED.
+ */
 public class RemovedChunkHelper extends BackupChunkHelper {
-    private ChunkInfo chunkInfo;
+    private Database database;
+    private String fileID;
+    private int chunkNo;
+    private int replicationDegree;
 
     public RemovedChunkHelper(Peer parentPeer, ChunkInfo chunkInfo, byte[] chunkData) {
         super(parentPeer, new ChunkData(chunkInfo, chunkData));
 
-        this.chunkInfo = chunkInfo;
+        this.database = parentPeer.getDatabase();
+        this.fileID = chunkInfo.getFileID();
+        this.chunkNo = chunkInfo.getChunkNo();
+        this.replicationDegree = chunkInfo.getReplicationDegree();
     }
 
+    /**
+     * Reads the chunk's mirrors from the database on each attempt, as STOREDs keep adding to them.
+     * A chunk no longer stored needs no more PUTCHUNKs.
+     */
     @Override
     protected boolean isDesiredReplicationDegree() {
-        return chunkInfo.getNumMirrors() >= chunkInfo.getReplicationDegree();
+        if (!database.hasChunk(fileID, chunkNo))
+            return true;
+
+        Integer perceivedReplication = database.getChunkPerceivedReplication(fileID, chunkNo);
+        return perceivedReplication == null || perceivedReplication >= replicationDegree;
     }
 }
@@ -1,45 +1,87 @@
 package protocols.initiators.helpers;
 
-import filesystem.ChunkData;
 import network.Message;
 import protocols.PeerData;
 import service.Peer;
 import utils.Log;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static protocols.ProtocolSettings.MAX_CHUNK_SIZE;
+
+/**
+ * Reads the CHUNK frames sent by one serving peer over its TCP connection.
+ * Frames are a 4 byte length followed by the message's wire form.
+ */
+public class TCPClientHandler {
+    /**
+     * Largest header accepted in a frame, on top of the chunk's body
+     */
+    private static final int MAX_HEADER_SIZE = 1024;
 
-public class TCPClientHandler implements Runnable {
     private Peer parentPeer;
-    private Socket clientSocket;
+    private SocketChannel clientChannel;
+
+    private final ByteBuffer lengthBuffer;
+    private ByteBuffer frame;
 
-    public TCPClientHandler(Peer parentPeer, Socket clientSocket) {
+    public TCPClientHandler(Peer parentPeer, SocketChannel clientChannel) {
         this.parentPeer = parentPeer;
-        this.clientSocket = clientSocket;
+        this.clientChannel = clientChannel;
+        this.lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
     }
 
-    @Override
-    public void run() {
-        //Receive the CHUNK
-        Message msg = null;
+    /**
+     * Reads and handles every complete frame available on the connection, without blocking.
+     *
+     * @return False if the connection was closed by the other peer
+     */
+    boolean read() throws IOException {
+        while (true) {
+            if (frame == null) {
+                if (clientChannel.read(lengthBuffer) < 0)
+                    return false;
+                if (lengthBuffer.hasRemaining())
+                    return true;
 
-        try {
-            ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream());
-            msg = (Message) ois.readObject();
-            ois.close();
-            clientSocket.close();
-        } catch (IOException | ClassNotFoundException e) {
-            Log.logError("Couldn't read the message through TCPServer!");
-        }
+                lengthBuffer.flip();
+                int length = lengthBuffer.getInt();
+                lengthBuffer.clear();
 
-        Log.logWarning("R TCP: " + msg.toString());
+                if (length < 0 || length > MAX_CHUNK_SIZE + MAX_HEADER_SIZE)
+                    throw new IOException("Invalid TCP frame length: " + length);
+                frame = ByteBuffer.allocate(length);
+            }
+
+            if (clientChannel.read(frame) < 0)
+                return false;
+            if (frame.hasRemaining())
+                return true;
+
+            // The CHUNK's body is a view over the frame, so each frame gets its own buffer
+            handleFrame(frame.array(), frame.capacity());
+            frame = null;
+        }
+    }
 
-        if (msg == null) {
+    private void handleFrame(byte[] data, int length) {
+        Message msg;
+        try {
+            msg = new Message(data, length);
+        } catch (Exception e) {
             Log.logError("Invalid CHUNK from TCP. Aborting!");
             return;
         }
 
+        if (msg.getType() != Message.MessageType.CHUNK) {
+            Log.logError("Ignoring non CHUNK message from TCP: " + msg);
+            return;
+        }
+
+        Log.logWarning("R TCP: " + msg.toString());
+
         //Handle the CHUNK
         PeerData peerData = parentPeer.getPeerData();
 
@@ -48,6 +90,14 @@ public class TCPClientHandler implements Runnable {
             return;
         }
 
-        peerData.addChunkToRestore(new ChunkData(msg.getFileID(), msg.getChunkNo(), msg.getBody()));
+        peerData.addChunkToRestore(msg.getFileID(), msg.getChunkNo(), msg.getBodyBuffer(), msg.getCodec());
+    }
+
+    void close() {
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            Log.logError("Couldn't close TCP client connection!");
+        }
     }
 }
@@ -0,0 +1,91 @@
+package protocols.initiators.helpers;
+
+import network.Message;
+import utils.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Long-lived TCP connections to the TCPServers of restoring peers, one per peer.
+ * <p>
+ * Messages are sent as frames made of a 4 byte length followed by the message's wire form,
+ * written with a single gathering write.
+ */
+public class TCPConnectionPool {
+    private final ConcurrentMap<InetSocketAddress, SocketChannel> connections;
+
+    public TCPConnectionPool() {
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    public void send(InetSocketAddress address, Message msg) throws IOException {
+        try {
+            write(getConnection(address), buildFrame(msg));
+        } catch (IOException e) {
+            // The connection may have gone stale (e.g. the other peer restarted), so reconnect once
+            Log.logWarning("Reconnecting to TCPServer at " + address);
+            closeConnection(address);
+            write(getConnection(address), buildFrame(msg));
+        }
+    }
+
+    private static ByteBuffer[] buildFrame(Message msg) {
+        ByteBuffer header = msg.getHeaderBuffer();
+        ByteBuffer body = msg.getBodyBuffer();
+
+        int length = header.remaining() + (body != null ? body.remaining() : 0);
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+        prefix.putInt(length).flip();
+
+        return body != null ? new ByteBuffer[]{prefix, header, body} : new ByteBuffer[]{prefix, header};
+    }
+
+    private SocketChannel getConnection(InetSocketAddress address) throws IOException {
+        try {
+            return connections.computeIfAbsent(address, k -> {
+                try {
+                    SocketChannel channel = SocketChannel.open(address);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Log.log("Connected to TCPServer at " + address);
+                    return channel;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer[] frame) throws IOException {
+        // Frames from concurrent senders must not interleave
+        synchronized (channel) {
+            while (frame[frame.length - 1].hasRemaining())
+                channel.write(frame);
+        }
+    }
+
+    private void closeConnection(InetSocketAddress address) {
+        SocketChannel channel = connections.remove(address);
+        if (channel == null)
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.logError("Couldn't close connection to " + address);
+        }
+    }
+
+    public void close() {
+        for (InetSocketAddress address : connections.keySet())
+            closeConnection(address);
+    }
+}
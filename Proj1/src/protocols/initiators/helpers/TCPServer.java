@@ -4,15 +4,24 @@ import service.Peer;
 import utils.Log;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 
 import static protocols.ProtocolSettings.TCPSERVER_PORT;
 
+/**
+ * Receives the CHUNKs of the restore enhancement.
+ * A single thread serves every connection, through a selector.
+ */
 public class TCPServer implements Runnable {
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
     private Peer parentPeer;
-    private boolean run;
+    private volatile boolean run;
 
     public TCPServer(Peer parentPeer) {
         this.parentPeer = parentPeer;
@@ -22,14 +31,34 @@ public class TCPServer implements Runnable {
     @Override
     public void run() {
         while (run) {
-            handleTCPClient();
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.logError("TCPServer selector failed!");
+                return;
+            }
+
+            if (!selector.isOpen())
+                return;
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid() && key.isAcceptable())
+                    handleTCPClient();
+                else if (key.isValid() && key.isReadable())
+                    readFromClient(key);
+            }
         }
     }
 
     public void closeTCPServer() {
         try {
             run = false;
-            serverSocket.close();
+            selector.close();
+            serverChannel.close();
         } catch (IOException e) {
             Log.logError("Couldn't close TCPServer!");
         }
@@ -37,7 +66,11 @@ public class TCPServer implements Runnable {
 
     private void initializeTCPServer() {
         try {
-            serverSocket = new ServerSocket(TCPSERVER_PORT + parentPeer.getID());
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(TCPSERVER_PORT + parentPeer.getID()));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             Log.logWarning("Started TCPServer!");
             run = true;
         } catch (IOException e) {
@@ -48,11 +81,32 @@ public class TCPServer implements Runnable {
 
     private void handleTCPClient() {
         try {
-            Socket clientSocket = serverSocket.accept();
+            SocketChannel clientChannel = serverChannel.accept();
+            if (clientChannel == null)
+                return;
+
             Log.log("Received a TCPClient");
-            new Thread(new TCPClientHandler(parentPeer, clientSocket)).start();
+            clientChannel.configureBlocking(false);
+            clientChannel.register(selector, SelectionKey.OP_READ, new TCPClientHandler(parentPeer, clientChannel));
+        } catch (IOException e) {
+            Log.logError("Couldn't accept TCPClient!");
+        }
+    }
+
+    private void readFromClient(SelectionKey key) {
+        TCPClientHandler client = (TCPClientHandler) key.attachment();
+
+        boolean open;
+        try {
+            open = client.read();
         } catch (IOException e) {
-            //e.printStackTrace();
+            Log.logError("Closing TCPClient: " + e.getMessage());
+            open = false;
+        }
+
+        if (!open) {
+            key.cancel();
+            client.close();
         }
     }
 }
@@ -2,24 +2,35 @@ package service;
 
 import channels.Channel;
 import channels.Channel.ChannelType;
+import channels.Channel.TransportType;
 import channels.MChannel;
 import channels.MDBChannel;
 import channels.MDRChannel;
+import channels.MulticastSelector;
+import filesystem.ChunkStore;
+import filesystem.ChunkWriter;
 import filesystem.Database;
+import filesystem.ReclaimPolicy;
 import filesystem.SystemManager;
 import network.ConcreteMessageDispatcher;
 import network.Message;
 import network.AbstractMessageDispatcher;
+import network.ShardedMessageDispatcher;
 import protocols.PeerData;
 import protocols.initiators.*;
+import protocols.initiators.helpers.TCPConnectionPool;
+import protocols.initiators.helpers.TCPServer;
 import utils.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -30,6 +41,45 @@ import static utils.Utils.parseRMI;
 
 public class Peer implements RemoteBackupService {
 
+    /**
+     * System property choosing the channels' transport (SOCKET or NIO)
+     */
+    private static final String TRANSPORT_PROPERTY = "transport";
+
+    /**
+     * System property with the number of message dispatcher lanes.
+     * Values above 1 enable the sharded message dispatcher.
+     */
+    private static final String DISPATCHER_LANES_PROPERTY = "dispatcher.lanes";
+    /**
+     * System property with the most DATA messages waiting in each lane of the sharded message dispatcher
+     */
+    private static final String DISPATCHER_LANE_CAPACITY_PROPERTY = "dispatcher.laneCapacity";
+    /**
+     * System property with the ReclaimPolicy used to choose which chunks to remove on RECLAIM
+     */
+    private static final String RECLAIM_POLICY_PROPERTY = "reclaim.policy";
+    /**
+     * System property choosing how chunks are stored on disk (FILES or SEGMENTS)
+     */
+    private static final String CHUNK_STORE_PROPERTY = "chunk.store";
+    /**
+     * System property enabling the deduplication of stored chunks with the same content
+     */
+    private static final String CHUNK_DEDUP_PROPERTY = "chunk.dedup";
+    /**
+     * System property with the capacity, in bytes, of the cache of chunks read and saved. 0 disables it.
+     */
+    private static final String CHUNK_CACHE_SIZE_PROPERTY = "chunk.cache.size";
+    /**
+     * System property choosing when stored chunks are synced to disk (NONE, BATCH or CHUNK)
+     */
+    private static final String CHUNK_SYNC_PROPERTY = "chunk.sync";
+    /**
+     * System property enabling incremental backups, which only send the chunks changed since a file's last backup
+     */
+    private static final String BACKUP_INCREMENTAL_PROPERTY = "backup.incremental";
+
     private final String protocolVersion;
     private final int id;
     private final String[] serverAccessPoint;
@@ -38,27 +88,50 @@ public class Peer implements RemoteBackupService {
     private Map<ChannelType, Channel> channels;
 
     /**
-     * Executor service responsible for scheduling delayed responses
-     * and performing all RMI sub-protocol tasks (backup, restore, ...).
+     * Executor service responsible for scheduling delayed responses and PUTCHUNK attempts.
+     * Its tasks never block waiting for other tasks.
      */
     private ScheduledExecutorService executor;
+    /**
+     * Executor service performing all RMI sub-protocol tasks (backup, restore, ...),
+     * which block until their sub-protocol ends. Kept apart from executor,
+     * so they can't take the threads the replies they wait for are sent from.
+     */
+    private ExecutorService initiatorExecutor;
 
     private SystemManager systemManager;
     private Database database;
     private PeerData peerData;
 
+    /**
+     * Receives the CHUNKs of this peer's restores, when the restore enhancement is used
+     */
+    private TCPServer tcpServer;
+    /**
+     * Connections to the TCPServers of other peers, kept open across restores
+     */
+    private TCPConnectionPool tcpConnectionPool;
+
     public Peer(String protocolVersion, int id, String[] serverAccessPoint, String[] mcAddress, String[] mdbAddress, String[] mdrAddress) {
         this.protocolVersion = protocolVersion;
         this.id = id;
         this.serverAccessPoint = serverAccessPoint;
 
-        systemManager = new SystemManager(this, MAX_SYSTEM_MEMORY);
+        systemManager = new SystemManager(this, MAX_SYSTEM_MEMORY,
+                getEnumProperty(CHUNK_STORE_PROPERTY, ChunkStore.StoreType.FILES),
+                Boolean.getBoolean(CHUNK_DEDUP_PROPERTY),
+                Long.getLong(CHUNK_CACHE_SIZE_PROPERTY, DEFAULT_CHUNK_CACHE_SIZE),
+                getEnumProperty(CHUNK_SYNC_PROPERTY, ChunkWriter.SyncPolicy.BATCH));
         database = systemManager.getDatabase();
+        database.setReclaimPolicy(getEnumProperty(RECLAIM_POLICY_PROPERTY, ReclaimPolicy.MOST_REPLICATED));
 
         setupChannels(mcAddress, mdbAddress, mdrAddress);
         setupMessageHandler();
 
         executor = new ScheduledThreadPoolExecutor(10);
+        initiatorExecutor = Executors.newCachedThreadPool();
+
+        setupTCP();
 
         sendUPMessage();
 
@@ -104,20 +177,59 @@ public class Peer implements RemoteBackupService {
         }
     }
 
+    /**
+     * @return The constant named by the system property, in any case,
+     * or defaultValue if the property isn't set or names no constant
+     */
+    private static <E extends Enum<E>> E getEnumProperty(String property, E defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.logWarning("Unknown " + property + " '" + value + "', using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return The value of the system property, or defaultSize if it isn't set to a positive number
+     */
+    private static int getSizeProperty(String property, int defaultSize) {
+        Integer size = Integer.getInteger(property);
+        if (size == null)
+            return defaultSize;
+
+        if (size < 1) {
+            Log.logWarning("Ignoring " + property + "=" + size + ", using " + defaultSize);
+            return defaultSize;
+        }
+        return size;
+    }
+
     private void setupMessageHandler() {
         peerData = new PeerData();
-        messageDispatcher = new ConcreteMessageDispatcher(this);
+        int numLanes = getSizeProperty(DISPATCHER_LANES_PROPERTY, 1);
+        if (numLanes > 1)
+            messageDispatcher = new ShardedMessageDispatcher(this, numLanes,
+                    getSizeProperty(DISPATCHER_LANE_CAPACITY_PROPERTY, ShardedMessageDispatcher.DEFAULT_LANE_CAPACITY));
+        else
+            messageDispatcher = new ConcreteMessageDispatcher(this);
         new Thread(messageDispatcher).start();
     }
 
     private void setupChannels(String[] mcAddress, String[] mdbAddress, String[] mdrAddress) {
-        Channel mc = new MChannel(this, mcAddress[0], mcAddress[1]);
-        Channel mdb = new MDBChannel(this, mdbAddress[0], mdbAddress[1]);
-        Channel mdr = new MDRChannel(this, mdrAddress[0], mdrAddress[1]);
+        MulticastSelector selector = setupMulticastSelector();
 
-        new Thread(mc).start();
-        new Thread(mdb).start();
-        new Thread(mdr).start();
+        Channel mc = new MChannel(this, mcAddress[0], mcAddress[1], selector);
+        Channel mdb = new MDBChannel(this, mdbAddress[0], mdbAddress[1], selector);
+        Channel mdr = new MDRChannel(this, mdrAddress[0], mdrAddress[1], selector);
+
+        mc.start();
+        mdb.start();
+        mdr.start();
 
         channels = new HashMap<>();
         channels.put(ChannelType.MC, mc);
@@ -125,6 +237,36 @@ public class Peer implements RemoteBackupService {
         channels.put(ChannelType.MDR, mdr);
     }
 
+    /**
+     * Starts the selector shared by all channels, if the NIO transport was chosen.
+     *
+     * @return The selector, or null if the channels use the blocking transport
+     */
+    private MulticastSelector setupMulticastSelector() {
+        TransportType transport = getEnumProperty(TRANSPORT_PROPERTY, TransportType.SOCKET);
+        if (transport != TransportType.NIO)
+            return null;
+
+        try {
+            MulticastSelector selector = new MulticastSelector();
+            new Thread(selector).start();
+            Log.log("Using NIO channel transport");
+            return selector;
+        } catch (IOException e) {
+            Log.logError("Couldn't open multicast selector, using blocking transport");
+            return null;
+        }
+    }
+
+    private void setupTCP() {
+        tcpConnectionPool = new TCPConnectionPool();
+
+        if (isPeerCompatibleWithEnhancement(ENHANCEMENT_RESTORE, this)) {
+            tcpServer = new TCPServer(this);
+            new Thread(tcpServer).start();
+        }
+    }
+
     public Future sendDelayedMessage(ChannelType channelType, Message message, long delay, TimeUnit unit) {
         return executor.schedule(() -> {
             try {
@@ -138,7 +280,15 @@ public class Peer implements RemoteBackupService {
     public void sendMessage(ChannelType channelType, Message message) throws IOException {
         Log.log("S: " + message.toString());
 
-        channels.get(channelType).sendMessage(message.getBytes());
+        channels.get(channelType).sendMessage(message);
+    }
+
+    public TCPConnectionPool getTCPConnectionPool() {
+        return tcpConnectionPool;
+    }
+
+    public ScheduledExecutorService getExecutor() {
+        return executor;
     }
 
     public Channel getChannel(ChannelType channelType) {
@@ -147,35 +297,30 @@ public class Peer implements RemoteBackupService {
 
     @Override
     public void backup(String pathname, int replicationDegree) {
-        executor.execute(new BackupInitiator(protocolVersion, pathname, replicationDegree, this));
+        initiatorExecutor.execute(new BackupInitiator(protocolVersion, pathname, replicationDegree,
+                Boolean.getBoolean(BACKUP_INCREMENTAL_PROPERTY), this));
     }
 
     @Override
     public void restore(String pathname) {
-        final Future handler;
-        handler = executor.submit(new RestoreInitiator(protocolVersion, pathname, this));
-
-        executor.schedule(() -> {
-            if (handler.cancel(true)) {
-                Log.logWarning("RestoreInitiator was killed for lack of chunks.");
-            }
-        }, 20, TimeUnit.SECONDS);
+        // RestoreInitiator gives up by itself if chunks stop arriving
+        initiatorExecutor.execute(new RestoreInitiator(protocolVersion, pathname, this));
     }
 
     @Override
     public void delete(String pathname) {
-        executor.execute(new DeleteInitiator(protocolVersion, pathname, this));
+        initiatorExecutor.execute(new DeleteInitiator(protocolVersion, pathname, this));
     }
 
     @Override
     public void reclaim(int space) {
         systemManager.getMemoryManager().setMaxMemory(space);
-        executor.execute(new ReclaimInitiator(protocolVersion, this));
+        initiatorExecutor.execute(new ReclaimInitiator(protocolVersion, this));
     }
 
     @Override
     public void state() {
-        executor.execute(new RetrieveStateInitiator(protocolVersion, this));
+        initiatorExecutor.execute(new RetrieveStateInitiator(protocolVersion, this));
     }
 
     public int getID() {
@@ -218,23 +363,20 @@ public class Peer implements RemoteBackupService {
         }
     }
 
-    public void addMsgToHandler(byte[] data, int length) {
-        messageDispatcher.pushMessage(data, length);
+    public boolean addMsgToHandler(byte[] data, int length, Runnable release) {
+        return messageDispatcher.pushMessage(data, length, release);
     }
 
     public byte[] loadChunk(String fileID, int chunkNo) {
         return systemManager.loadChunk(fileID, chunkNo);
     }
 
-    public void setRestoring(boolean flag, String fileID) {
-        peerData.setFlagRestored(flag, fileID);
+    public ByteBuffer mapChunk(String fileID, int chunkNo) {
+        return systemManager.mapChunk(fileID, chunkNo);
     }
 
-    public boolean hasRestoreFinished(String pathName, String fileID) {
-        int numChunks = database.getNumChunksByFilePath(pathName);
-        int chunksRestored = peerData.getChunksRestoredSize(fileID);
-
-        return numChunks == chunksRestored;
+    public AbstractMessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
     }
 
     public PeerData getPeerData() {
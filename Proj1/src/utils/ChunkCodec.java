@@ -0,0 +1,96 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodings of a chunk's body, named in the header of the PUTCHUNKs and CHUNKs that carry an encoded one.
+ * <p>
+ * Chunks are encoded by the peer backing them up, stored encoded by their mirrors,
+ * and only decoded when restored.
+ */
+public enum ChunkCodec {
+    NONE,
+    DEFLATE;
+
+    /**
+     * Deflaters and Inflaters hold native memory, so each thread reuses its own
+     */
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @return The codec with the given name, or null if there is none
+     */
+    public static ChunkCodec fromName(String name) {
+        for (ChunkCodec codec : values()) {
+            if (codec.name().equals(name))
+                return codec;
+        }
+        return null;
+    }
+
+    /**
+     * @return The encoded data, or null if encoding doesn't make it smaller
+     */
+    public byte[] encode(byte[] data) {
+        if (this == NONE)
+            return data;
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        // Only worth it if it saves something
+        byte[] encoded = new byte[data.length];
+        int length = 0;
+        while (!deflater.finished() && length < encoded.length)
+            length += deflater.deflate(encoded, length, encoded.length - length);
+
+        if (!deflater.finished())
+            return null;
+
+        byte[] result = new byte[length];
+        System.arraycopy(encoded, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * @param maxSize Largest the decoded data may be
+     * @throws IOException If the data isn't validly encoded, or decodes to more than maxSize bytes
+     */
+    public ByteBuffer decode(ByteBuffer data, int maxSize) throws IOException {
+        if (this == NONE)
+            return data;
+
+        byte[] input = new byte[data.remaining()];
+        data.duplicate().get(input);
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(input);
+
+        // One byte more than allowed, to tell a full chunk from an oversized one
+        byte[] decoded = new byte[maxSize + 1];
+        int length = 0;
+        try {
+            while (!inflater.finished() && length < decoded.length) {
+                int inflated = inflater.inflate(decoded, length, decoded.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated " + this + " body");
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid " + this + " body: " + e.getMessage());
+        }
+
+        if (length > maxSize)
+            throw new IOException(this + " body decodes to more than " + maxSize + " bytes");
+
+        return ByteBuffer.wrap(decoded, 0, length);
+    }
+}
@@ -27,6 +27,22 @@ public class Utils {
     }
 
     public static String hash(String msg) {
+        return hash(msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String hash(byte[] data) {
+        byte[] hash = sha256(data);
+        if (hash == null)
+            return null;
+
+        String hashedID = bytesToHex(hash);
+        return hashedID;
+    }
+
+    /**
+     * @return The data's SHA-256, or null if the algorithm isn't available
+     */
+    public static byte[] sha256(byte[] data) {
         MessageDigest digest;
         try {
             digest = MessageDigest.getInstance("SHA-256");
@@ -35,9 +51,7 @@ public class Utils {
             return null;
         }
 
-        byte[] hash = digest.digest(msg.getBytes(StandardCharsets.UTF_8));
-        String hashedID = bytesToHex(hash);
-        return hashedID;
+        return digest.digest(data);
     }
 
     public static String getIPV4Address() {
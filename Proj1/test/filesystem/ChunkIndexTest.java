@@ -0,0 +1,85 @@
+package filesystem;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Checks that the chunk index frees the handle of a file once its last chunk is removed,
+ * so backing up and removing many files doesn't grow it, and that compact() keeps every chunk left reachable.
+ * <p>
+ * Usage: java -classpath bin filesystem.ChunkIndexTest
+ */
+public class ChunkIndexTest {
+    private static final int NUM_FILES = 10000;
+    private static final int CHUNKS_PER_FILE = 3;
+
+    public static void main(String[] args) {
+        int status = 1;
+        try {
+            check();
+            status = 0;
+        } catch (Exception | AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+        }
+        System.exit(status);
+    }
+
+    private static void check() throws Exception {
+        ChunkIndex index = new ChunkIndex();
+
+        // A file kept throughout, while others come and go, by chunk or all at once
+        addFile(index, fileID(-1));
+        for (int i = 0; i < NUM_FILES; i++) {
+            addFile(index, fileID(i));
+            if (i % 2 == 0) {
+                index.removeFile(fileID(i));
+            } else {
+                for (int chunkNo = 0; chunkNo < CHUNKS_PER_FILE; chunkNo++)
+                    index.remove(fileID(i), chunkNo);
+            }
+        }
+
+        int handles = numHandles(index);
+        if (handles > 2)
+            throw new AssertionError("Expected at most 2 handles after removing " + NUM_FILES + " files, got " + handles);
+        if (index.containsFile(fileID(0)) || index.get(fileID(1), 0) != null)
+            throw new AssertionError("Removed files still indexed");
+
+        // Leave a handle freed below one in use, for compact() to renumber
+        addFile(index, fileID(0));
+        addFile(index, fileID(1));
+        index.removeFile(fileID(0));
+        index.addMirror(fileID(1), 2, 100);
+        index.compact();
+
+        for (String fileID : new String[]{fileID(-1), fileID(1)}) {
+            for (int chunkNo = 0; chunkNo < CHUNKS_PER_FILE; chunkNo++) {
+                ChunkInfo chunkInfo = index.get(fileID, chunkNo);
+                if (chunkInfo == null || !chunkInfo.getFileID().equals(fileID))
+                    throw new AssertionError("Lost chunk " + chunkNo + " of " + fileID + " on compaction");
+            }
+        }
+        if (index.getNumMirrors(fileID(1), 2) != 1)
+            throw new AssertionError("Lost the mirror of chunk 2 on compaction");
+        if (index.size() != 2 * CHUNKS_PER_FILE || numHandles(index) != 2)
+            throw new AssertionError("Expected " + 2 * CHUNKS_PER_FILE + " chunks of 2 files after compaction, got "
+                    + index.size() + " chunks and " + numHandles(index) + " handles");
+
+        System.out.println("OK: " + handles + " handles after removing " + NUM_FILES + " files");
+    }
+
+    private static void addFile(ChunkIndex index, String fileID) {
+        for (int chunkNo = 0; chunkNo < CHUNKS_PER_FILE; chunkNo++)
+            index.add(new ChunkInfo(fileID, chunkNo, 1, 1000));
+    }
+
+    private static String fileID(int i) {
+        return String.format("%064X", i & 0xFFFFFFFFL);
+    }
+
+    private static int numHandles(ChunkIndex index) throws ReflectiveOperationException {
+        Field fileIDs = ChunkIndex.class.getDeclaredField("fileIDs");
+        fileIDs.setAccessible(true);
+        return ((List<?>) fileIDs.get(index)).size();
+    }
+}
@@ -0,0 +1,76 @@
+package network;
+
+import network.AbstractMessageDispatcher.Priority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that control messages are taken ahead of data messages about other chunks,
+ * but never ahead of the data messages queued before them about the same chunk.
+ * <p>
+ * Usage: java -classpath bin network.PriorityMessageQueueTest
+ */
+public class PriorityMessageQueueTest {
+    private static final String FILE_ID = "6E66506F1DEC82C0327CA4DF8B26D10ADBC4B4172E7EDD51B651E9E5EE5B4C36";
+
+    public static void main(String[] args) {
+        int status = 1;
+        try {
+            check();
+            status = 0;
+        } catch (Exception | AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+        }
+        System.exit(status);
+    }
+
+    private static void check() throws InterruptedException {
+        PriorityMessageQueue queue = new PriorityMessageQueue(16, new QueueWaitStatistics());
+
+        // PUTCHUNK and STORED of chunk 0 interleaved, with a STORED of chunk 1 queued last
+        put(queue, Message.MessageType.PUTCHUNK, 0, 2);
+        put(queue, Message.MessageType.STORED, 0, 3);
+        put(queue, Message.MessageType.PUTCHUNK, 0, 4);
+        put(queue, Message.MessageType.STORED, 0, 5);
+        put(queue, Message.MessageType.STORED, 1, 6);
+
+        List<String> taken = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message msg = queue.take();
+            taken.add(msg.getType() + " " + msg.getChunkNo() + " from " + msg.getSenderID());
+        }
+
+        List<String> expected = Arrays.asList(
+                "STORED 1 from 6",
+                "PUTCHUNK 0 from 2",
+                "STORED 0 from 3",
+                "PUTCHUNK 0 from 4",
+                "STORED 0 from 5");
+        if (!taken.equals(expected))
+            throw new AssertionError("Expected " + expected + ", took " + taken);
+
+        // With no PUTCHUNK of its chunk left, a STORED is taken ahead of other chunks' PUTCHUNKs again
+        put(queue, Message.MessageType.PUTCHUNK, 2, 2);
+        put(queue, Message.MessageType.STORED, 0, 7);
+        Message first = queue.take();
+        if (first.getType() != Message.MessageType.STORED)
+            throw new AssertionError("Expected the STORED first, took " + first.getType());
+        queue.take();
+
+        System.out.println("OK: " + taken);
+    }
+
+    private static void put(PriorityMessageQueue queue, Message.MessageType type, int chunkNo, int senderID)
+            throws InterruptedException {
+        String[] args = {"1.0", Integer.toString(senderID), FILE_ID, Integer.toString(chunkNo)};
+        if (type == Message.MessageType.PUTCHUNK) {
+            args = Arrays.copyOf(args, 5);
+            args[4] = "1";
+            queue.put(new Message(type, args, new byte[100]), Priority.DATA);
+        } else {
+            queue.put(new Message(type, args), Priority.CONTROL);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package protocols.initiators.helpers;
+
+import filesystem.ChunkInfo;
+import filesystem.Database;
+import network.Message;
+import service.Peer;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import static filesystem.SystemManager.SAVE_STATE;
+
+/**
+ * Checks that the PUTCHUNKs a peer sends after a REMOVED stop once STOREDs bring the chunk back
+ * to its replication degree, instead of going on for every attempt.
+ * <p>
+ * Starts a peer on its own multicast ports, stores a chunk of replication degree 2 mirrored by peer 2,
+ * sends peer 2's REMOVED, and answers the first PUTCHUNK with peer 3's STORED.
+ * The peer's file system is created under fileSystem/ in the working folder.
+ * <p>
+ * Usage: java -classpath bin protocols.initiators.helpers.RemovedChunkHelperTest 2>/dev/null
+ */
+public class RemovedChunkHelperTest {
+    private static final String GROUP = "224.0.0.1";
+    private static final int MC_PORT = 8190;
+    private static final int MDB_PORT = 8191;
+    private static final int MDR_PORT = 8192;
+
+    private static final int PEER_ID = 90;
+    private static final String FILE_ID = "5EC4A3B35F3D0D9E6B9E0D5E3AE1C9A7A3E1CC1C5B8A8F9E3D0B9B2D3A4C5E6F";
+
+    /**
+     * Long enough for the next three attempts of a helper that doesn't see the STORED, 1, 2 and 4 seconds apart
+     */
+    private static final int LISTEN_MILLIS = 5000;
+
+    public static void main(String[] args) {
+        int status = 1;
+        try {
+            check();
+            status = 0;
+        } catch (Exception | AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+        }
+        System.exit(status); // Also stops the peer's threads
+    }
+
+    private static void check() throws Exception {
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        InetAddress group = InetAddress.getByName(GROUP);
+
+        try (MulticastSocket mc = new MulticastSocket(); MulticastSocket mdb = new MulticastSocket(MDB_PORT)) {
+            mdb.joinGroup(group);
+
+            Peer peer = new Peer("1.0", PEER_ID, null, address(MC_PORT), address(MDB_PORT), address(MDR_PORT));
+
+            byte[] data = new byte[1000];
+            new Random(1).nextBytes(data);
+            if (peer.getSystemManager().saveChunk(FILE_ID, 0, data).join() != SAVE_STATE.SUCCESS)
+                throw new AssertionError("Couldn't store the chunk");
+
+            Database database = peer.getDatabase();
+            database.addChunk(new ChunkInfo(FILE_ID, 0, 2, data.length), PEER_ID);
+            database.addChunkMirror(FILE_ID, 0, 2);
+
+            send(mc, group, MC_PORT, Message.MessageType.REMOVED, 2);
+
+            mdb.setSoTimeout(LISTEN_MILLIS);
+            int putchunks = 0;
+            long end = System.currentTimeMillis() + LISTEN_MILLIS;
+            byte[] buffer = new byte[65000];
+            while (System.currentTimeMillis() < end) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    mdb.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+
+                Message msg = new Message(packet.getData(), packet.getLength());
+                if (msg.getType() != Message.MessageType.PUTCHUNK || !msg.getFileID().equals(FILE_ID))
+                    continue;
+
+                if (++putchunks == 1)
+                    send(mc, group, MC_PORT, Message.MessageType.STORED, 3);
+            }
+
+            if (putchunks != 1)
+                throw new AssertionError("Expected 1 PUTCHUNK after the REMOVED, got " + putchunks);
+            System.out.println("OK: 1 PUTCHUNK, stopped after peer 3's STORED");
+        }
+    }
+
+    private static String[] address(int port) {
+        return new String[]{GROUP, Integer.toString(port)};
+    }
+
+    private static void send(MulticastSocket socket, InetAddress group, int port,
+                             Message.MessageType type, int senderID) throws Exception {
+        String[] args = {"1.0", Integer.toString(senderID), FILE_ID, "0"};
+        byte[] bytes = new Message(type, args).getBytes();
+        socket.send(new DatagramPacket(bytes, bytes.length, group, port));
+    }
+}